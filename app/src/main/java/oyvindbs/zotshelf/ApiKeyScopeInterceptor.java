@@ -0,0 +1,52 @@
+package oyvindbs.zotshelf;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps the Zotero API key from leaving the Zotero API.
+ *
+ * File requests are redirected to Zotero's storage server, and OkHttp carries every
+ * header but Authorization over to the redirected request. Installed as a network
+ * interceptor, this sees each hop of a redirect and drops the key from any request
+ * that isn't going to the API host.
+ */
+public class ApiKeyScopeInterceptor implements Interceptor {
+
+    public static final String API_KEY_HEADER = "Zotero-API-Key";
+
+    private static final String TAG = "ApiKeyScope";
+    private static final String API_HOST = HttpUrl.get(ZoteroApiClient.BASE_URL).host();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.header(API_KEY_HEADER) == null || isApiUrl(request.url())) {
+            return chain.proceed(request);
+        }
+
+        Log.d(TAG, "Not sending the API key to " + request.url().host());
+        return chain.proceed(request.newBuilder().removeHeader(API_KEY_HEADER).build());
+    }
+
+    /**
+     * Check whether a URL points at the Zotero API, the only host the key is for
+     */
+    public static boolean isApiUrl(HttpUrl url) {
+        return url.isHttps() && API_HOST.equals(url.host());
+    }
+
+    /**
+     * Check a URL given as a string, which counts as not the API if it can't be parsed
+     */
+    public static boolean isApiUrl(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        return parsed != null && isApiUrl(parsed);
+    }
+}
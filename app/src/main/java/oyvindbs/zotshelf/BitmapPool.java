@@ -0,0 +1,129 @@
+package oyvindbs.zotshelf;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps bitmaps from finished cover extractions for the next ones, so rendering and
+ * scaling hundreds of covers reuses a few native allocations instead of making and
+ * recycling new ones each time. Bitmaps are kept by size and config, and the sizes
+ * used least recently are dropped once the pool holds more than its byte budget.
+ */
+public final class BitmapPool {
+
+    private static final long MAX_POOL_BYTES = 8 * 1024 * 1024;
+
+    private static volatile BitmapPool instance;
+
+    // Access ordered, so the first key is the size used least recently
+    private final LinkedHashMap<String, ArrayDeque<Bitmap>> pool = new LinkedHashMap<>(16, 0.75f, true);
+    private long pooledBytes = 0;
+
+    public static BitmapPool getInstance() {
+        if (instance == null) {
+            synchronized (BitmapPool.class) {
+                if (instance == null) {
+                    instance = new BitmapPool();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Get a cleared, mutable bitmap of exactly this size, reusing a pooled one if there is one
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Get a pooled bitmap that BitmapFactory can decode into, for use as inBitmap
+     * @param byteCount Bytes the decoded image will need
+     * @return The bitmap, or null if none is large enough
+     */
+    public synchronized Bitmap getReusable(int byteCount, Bitmap.Config config) {
+        for (Iterator<Map.Entry<String, ArrayDeque<Bitmap>>> entries = pool.entrySet().iterator(); entries.hasNext(); ) {
+            ArrayDeque<Bitmap> bitmaps = entries.next().getValue();
+            Bitmap candidate = bitmaps.peek();
+            if (candidate != null && candidate.getConfig() == config
+                    && candidate.getAllocationByteCount() >= byteCount) {
+                bitmaps.poll();
+                if (bitmaps.isEmpty()) {
+                    entries.remove();
+                }
+                pooledBytes -= candidate.getAllocationByteCount();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hand a bitmap back for reuse. The caller must not touch it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > MAX_POOL_BYTES) {
+            bitmap.recycle();
+            return;
+        }
+
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = pool.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            pool.put(key, bitmaps);
+        }
+        bitmaps.push(bitmap);
+        pooledBytes += bitmap.getAllocationByteCount();
+
+        Iterator<Map.Entry<String, ArrayDeque<Bitmap>>> entries = pool.entrySet().iterator();
+        while (pooledBytes > MAX_POOL_BYTES && entries.hasNext()) {
+            ArrayDeque<Bitmap> eldest = entries.next().getValue();
+            while (pooledBytes > MAX_POOL_BYTES && !eldest.isEmpty()) {
+                Bitmap evicted = eldest.pollLast();
+                pooledBytes -= evicted.getAllocationByteCount();
+                evicted.recycle();
+            }
+            if (eldest.isEmpty()) {
+                entries.remove();
+            }
+        }
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        String key = key(width, height, config);
+        ArrayDeque<Bitmap> bitmaps = pool.get(key);
+        if (bitmaps == null) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.poll();
+        if (bitmaps.isEmpty()) {
+            pool.remove(key);
+        }
+        if (bitmap != null) {
+            pooledBytes -= bitmap.getAllocationByteCount();
+        }
+        return bitmap;
+    }
+
+    private static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
@@ -0,0 +1,97 @@
+package oyvindbs.zotshelf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit2.Call;
+
+/**
+ * Handle for cancelling work that is queued or running: API loads, downloads and
+ * cover extractions. Cancelling cancels the HTTP calls it tracks, runs its cancel
+ * actions and cancels any child handles. Anything added after the handle was
+ * cancelled is cancelled straight away.
+ */
+public class CancelHandle {
+
+    private final List<Call<?>> calls = new ArrayList<>();
+    private final List<Runnable> cancelActions = new ArrayList<>();
+    private final List<CancelHandle> children = new ArrayList<>();
+    private boolean cancelled = false;
+
+    public void cancel() {
+        List<Call<?>> callsToCancel;
+        List<Runnable> actionsToRun;
+        List<CancelHandle> childrenToCancel;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            callsToCancel = new ArrayList<>(calls);
+            actionsToRun = new ArrayList<>(cancelActions);
+            childrenToCancel = new ArrayList<>(children);
+            calls.clear();
+            cancelActions.clear();
+            children.clear();
+        }
+
+        for (Call<?> call : callsToCancel) {
+            call.cancel();
+        }
+        for (Runnable action : actionsToRun) {
+            action.run();
+        }
+        for (CancelHandle child : childrenToCancel) {
+            child.cancel();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel a child handle together with this one
+     * @return The child, for chaining
+     */
+    public CancelHandle add(CancelHandle child) {
+        synchronized (this) {
+            if (!cancelled) {
+                children.add(child);
+                return child;
+            }
+        }
+        child.cancel();
+        return child;
+    }
+
+    /**
+     * Run an action when this handle is cancelled
+     */
+    public void onCancel(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Cancel the call if this handle is cancelled while it is in flight
+     */
+    void track(Call<?> call) {
+        synchronized (this) {
+            if (!cancelled) {
+                calls.add(call);
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    synchronized void untrack(Call<?> call) {
+        calls.remove(call);
+    }
+}
@@ -20,8 +20,18 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import oyvindbs.zotshelf.database.EpubCoverEntity;
 import oyvindbs.zotshelf.database.EpubCoverRepository;
 import oyvindbs.zotshelf.utils.NetworkUtils;
 
@@ -44,8 +54,47 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
     private ZoteroApiClient zoteroApiClient;
     private UserPreferences userPreferences;
     private EpubCoverRepository coverRepository;
+    private LibrarySyncEngine syncEngine;
+    private CoverJobQueue coverJobs;
     private boolean isOfflineMode = false;
 
+    // Grid updates waiting for the next frame, by item id
+    private final Map<String, EpubCoverItem> pendingCoverUpdates = new LinkedHashMap<>();
+    private boolean coverUpdateScheduled = false;
+
+    // Loads started for the current view; cancelled with it
+    private CancelHandle viewLoads = new CancelHandle();
+
+    // Cover jobs this tab is waiting for, and the load each one belongs to
+    private final Map<String, CoverFetchBatch> awaitedCovers = new ConcurrentHashMap<>();
+    // Cover jobs waiting for Wi-Fi; shown if they land while the tab is open
+    private final Set<String> deferredCovers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean deferralNoticeShown = new AtomicBoolean(false);
+
+    private final CoverJobQueue.JobListener coverJobListener = new CoverJobQueue.JobListener() {
+        @Override
+        public void onCoverFetched(EpubCoverEntity entry) {
+            CoverFetchBatch coverBatch = awaitedCovers.remove(entry.getId());
+            if (coverBatch != null || deferredCovers.remove(entry.getId())) {
+                postCoverUpdates(coverRepository.convertEntitiesToCoverItems(Collections.singletonList(entry)));
+            }
+            if (coverBatch != null) {
+                coverBatch.done();
+            }
+        }
+
+        @Override
+        public void onJobFailed(String itemKey, String errorMessage) {
+            deferredCovers.remove(itemKey);
+            CoverFetchBatch coverBatch = awaitedCovers.remove(itemKey);
+            if (coverBatch != null) {
+                // The item stays on screen with the placeholder cover
+                Log.w("CollectionFragment", "No cover for " + itemKey + ": " + errorMessage);
+                coverBatch.done();
+            }
+        }
+    };
+
     public static CollectionFragment newInstance(String collectionKey, String collectionName, String tags) {
         CollectionFragment fragment = new CollectionFragment();
         Bundle args = new Bundle();
@@ -68,6 +117,8 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
         userPreferences = new UserPreferences(requireContext());
         coverRepository = new EpubCoverRepository(requireContext());
         zoteroApiClient = new ZoteroApiClient(requireContext());
+        syncEngine = new LibrarySyncEngine(requireContext(), zoteroApiClient);
+        coverJobs = CoverJobQueue.getInstance(requireContext());
     }
 
     @Nullable
@@ -75,6 +126,8 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
                              @Nullable Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_collection, container, false);
+        viewLoads = new CancelHandle();
+        coverJobs.addListener(coverJobListener);
 
         progressBar = view.findViewById(R.id.progressBar);
         emptyView = view.findViewById(R.id.emptyView);
@@ -88,23 +141,77 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
         adapter = new CoverGridAdapter(requireContext(), coverItems, this, displayMode);
         recyclerView.setAdapter(adapter);
 
+        // Extract the covers on screen first once scrolling settles
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    reportVisibleCovers();
+                }
+            }
+        });
+
         // Setup refresh listener
         swipeRefreshLayout.setOnRefreshListener(this::refreshCovers);
 
         return view;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // This tab is the one on screen now
+        if (recyclerView != null) {
+            recyclerView.post(this::reportVisibleCovers);
+        }
+    }
+
+    /**
+     * Tell the extraction scheduler which items are on screen, and mark their
+     * covers as used so they are the last to be evicted
+     */
+    private void reportVisibleCovers() {
+        if (recyclerView == null || !isResumed()) {
+            return;
+        }
+        GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        Set<String> visibleKeys = new HashSet<>();
+        List<String> visibleCoverPaths = new ArrayList<>();
+        if (first != RecyclerView.NO_POSITION) {
+            for (int i = first; i <= last && i < coverItems.size(); i++) {
+                EpubCoverItem item = coverItems.get(i);
+                visibleKeys.add(item.getId());
+                if (item.getCoverPath() != null) {
+                    visibleCoverPaths.add(item.getCoverPath());
+                }
+            }
+        }
+        ExtractionScheduler.getInstance().setVisibleKeys(visibleKeys);
+        StorageBudget.getInstance(requireContext()).touchAsync(visibleCoverPaths);
+    }
+
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
         loadCovers();
     }
 
+    @Override
+    public void onDestroyView() {
+        // Nothing is left to show the results, so stop the loads and free the network.
+        // Queued cover jobs carry on, as they are saved to the cache either way.
+        viewLoads.cancel();
+        coverJobs.removeListener(coverJobListener);
+        awaitedCovers.clear();
+        deferredCovers.clear();
+        super.onDestroyView();
+    }
+
     private int calculateSpanCount() {
-        float density = getResources().getDisplayMetrics().density;
-        int screenWidthDp = (int) (getResources().getDisplayMetrics().widthPixels / density);
-        int itemWidthDp = 120;
-        return Math.max(2, screenWidthDp / itemWidthDp);
+        // Covers are stored at the size of these columns
+        return CoverThumbnails.getGridColumnCount(getResources().getDisplayMetrics());
     }
 
     private void loadCovers() {
@@ -198,10 +305,18 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
     }
 
     private void loadCoversFromApi() {
+        if (tags != null && !tags.trim().isEmpty()) {
+            loadTaggedCoversFromApi();
+        } else {
+            syncCoversFromApi(false);
+        }
+    }
+
+    private void loadTaggedCoversFromApi() {
         String userId = userPreferences.getZoteroUserId();
         String apiKey = userPreferences.getZoteroApiKey();
 
-        zoteroApiClient.getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, tags,
+        viewLoads.add(zoteroApiClient.getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, tags,
                 new ZoteroApiClient.ZoteroCallback<List<ZoteroItem>>() {
             @Override
             public void onSuccess(List<ZoteroItem> zoteroItems) {
@@ -218,91 +333,237 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
                     progressBar.setVisibility(View.GONE);
                     swipeRefreshLayout.setRefreshing(false);
 
-                    // For tag-filtered tabs, show specific error message
-                    if (tags != null && !tags.trim().isEmpty()) {
-                        String message = "Failed to load items with tag filter:\n" +
-                                       "Tags: " + tags + "\n\n" +
-                                       "Error: " + errorMessage + "\n\n" +
-                                       "Note: Tag names are case-sensitive";
-                        showErrorDialog("Tag Filter Error", message);
-                    } else {
-                        // For non-tag tabs, try to fall back to cache
-                        coverRepository.hasCachedCovers(hasCovers -> {
-                            if (hasCovers && (tags == null || tags.trim().isEmpty())) {
-                                loadCachedCovers();
-                                Toast.makeText(requireContext(),
-                                    "Failed to update from Zotero. Showing cached data.",
-                                    Toast.LENGTH_LONG).show();
-                            } else {
-                                showErrorDialog("Error Loading Items", errorMessage);
-                            }
-                        });
-                    }
+                    String message = "Failed to load items with tag filter:\n" +
+                                   "Tags: " + tags + "\n\n" +
+                                   "Error: " + errorMessage + "\n\n" +
+                                   "Note: Tag names are case-sensitive";
+                    showErrorDialog("Tag Filter Error", message);
                 });
             }
-        });
+        }));
     }
 
     private void loadCoversFromApiInBackground() {
+        syncCoversFromApi(true);
+    }
+
+    /**
+     * Bring the cache for this tab up to date with Zotero, fetch covers for any
+     * entries that don't have one yet, then show the cached covers. Entries appear
+     * in the grid page by page as the sync stores them, and covers as they land.
+     * @param inBackground true when cached covers are already on screen
+     */
+    private void syncCoversFromApi(boolean inBackground) {
         String userId = userPreferences.getZoteroUserId();
         String apiKey = userPreferences.getZoteroApiKey();
 
-        zoteroApiClient.getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, tags,
-                new ZoteroApiClient.ZoteroCallback<List<ZoteroItem>>() {
+        NetworkScheduler.Lane lane = inBackground
+                ? NetworkScheduler.Lane.PREFETCH : NetworkScheduler.Lane.VISIBLE_DOWNLOAD;
+        CoverFetchBatch coverBatch = new CoverFetchBatch(() -> {
+            loadCachedCovers();
+
+            if (inBackground && getActivity() != null) {
+                getActivity().runOnUiThread(() ->
+                        Toast.makeText(requireContext(), "Library updated from Zotero",
+                                Toast.LENGTH_SHORT).show());
+            }
+        });
+
+        LibrarySyncEngine.ProgressListener progressListener = entries -> {
+            List<EpubCoverEntity> shown = coverRepository.filterByPreferences(entries);
+            postCoverUpdates(coverRepository.convertEntitiesToCoverItems(shown));
+
+            List<EpubCoverEntity> missingCovers = new ArrayList<>();
+            for (EpubCoverEntity entry : shown) {
+                if (entry.getCoverPath() == null) {
+                    missingCovers.add(entry);
+                }
+            }
+            fetchMissingCovers(missingCovers, lane, coverBatch);
+        };
+
+        viewLoads.add(syncEngine.sync(userId, apiKey, collectionKey, progressListener, new LibrarySyncEngine.SyncCallback() {
             @Override
-            public void onSuccess(List<ZoteroItem> zoteroItems) {
-                Log.d("CollectionFragment", "Background update: Received " +
-                        zoteroItems.size() + " items from API");
-                processZoteroItemsForCache(zoteroItems);
+            public void onSyncComplete(LibraryDelta delta) {
+                List<EpubCoverEntity> missingCovers = coverRepository.getEntriesMissingCoversSync(collectionKey);
+                Log.d("CollectionFragment", "Sync complete: " + delta.getChangedAttachmentCount() +
+                        " changed items, " + missingCovers.size() + " missing covers");
+
+                if (inBackground && delta.isUnchanged() && missingCovers.isEmpty()) {
+                    if (getActivity() == null) return;
+                    getActivity().runOnUiThread(() -> swipeRefreshLayout.setRefreshing(false));
+                    return;
+                }
 
-                if (getActivity() == null) return;
-                getActivity().runOnUiThread(() -> {
-                    swipeRefreshLayout.setRefreshing(false);
-                    Toast.makeText(requireContext(), "Library updated from Zotero",
-                            Toast.LENGTH_SHORT).show();
-                });
+                // Covers already requested while the sync ran are skipped
+                fetchMissingCovers(missingCovers, lane, coverBatch);
+                coverBatch.done();
             }
 
             @Override
             public void onError(String errorMessage) {
-                Log.e("CollectionFragment", "Background update error: " + errorMessage);
+                Log.e("CollectionFragment", (inBackground ? "Background update error: " : "API error: ") + errorMessage);
                 if (getActivity() == null) return;
 
                 getActivity().runOnUiThread(() -> {
                     swipeRefreshLayout.setRefreshing(false);
+                    if (inBackground) {
+                        return;
+                    }
+
+                    progressBar.setVisibility(View.GONE);
+
+                    // Fall back to cache if there is anything in it
+                    coverRepository.hasCachedCovers(hasCovers -> {
+                        if (hasCovers) {
+                            loadCachedCovers();
+                            Toast.makeText(requireContext(),
+                                "Failed to update from Zotero. Showing cached data.",
+                                Toast.LENGTH_LONG).show();
+                        } else {
+                            showErrorDialog("Error Loading Items", errorMessage);
+                        }
+                    });
                 });
             }
-        });
+        }));
     }
 
-    private void processZoteroItemsForCache(List<ZoteroItem> zoteroItems) {
-        if (zoteroItems.isEmpty()) {
+    /**
+     * Covers fetched during one load. The load itself holds one count until it has
+     * requested everything, so onComplete runs once, after the last cover.
+     */
+    private static class CoverFetchBatch {
+        private final Set<String> requested = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final Runnable onComplete;
+
+        CoverFetchBatch(Runnable onComplete) {
+            this.onComplete = onComplete;
+        }
+
+        /**
+         * @return false if the cover was already requested in this load
+         */
+        boolean request(String id) {
+            if (!requested.add(id)) {
+                return false;
+            }
+            pending.incrementAndGet();
+            return true;
+        }
+
+        void done() {
+            if (pending.decrementAndGet() == 0) {
+                onComplete.run();
+            }
+        }
+    }
+
+    /**
+     * Queue cover jobs for cached entries that don't have a cover yet,
+     * showing each cover in the grid as soon as it is fetched
+     * @param lane Scheduler lane for the requests
+     * @param coverBatch The load the covers belong to
+     */
+    private void fetchMissingCovers(List<EpubCoverEntity> entries, NetworkScheduler.Lane lane, CoverFetchBatch coverBatch) {
+        List<ZoteroItem> items = new ArrayList<>();
+        for (EpubCoverEntity entry : entries) {
+            items.add(EpubCoverRepository.toZoteroItem(entry));
+        }
+        enqueueCovers(items, lane, coverBatch);
+    }
+
+    /**
+     * Queue cover jobs for items stored in the cache, counting them in a load.
+     * On a metered network the jobs wait for Wi-Fi, and the load finishes without
+     * them, leaving the placeholders on screen.
+     * @param coverBatch The load the covers belong to
+     */
+    private void enqueueCovers(List<ZoteroItem> items, NetworkScheduler.Lane lane, CoverFetchBatch coverBatch) {
+        if (coverJobs.isDeferring()) {
+            for (ZoteroItem item : items) {
+                deferredCovers.add(item.getKey());
+            }
+            coverJobs.enqueue(items, lane);
+            if (!items.isEmpty() && deferralNoticeShown.compareAndSet(false, true) && getActivity() != null) {
+                getActivity().runOnUiThread(() ->
+                        Toast.makeText(requireContext(), "On mobile data - covers will download on Wi-Fi",
+                                Toast.LENGTH_SHORT).show());
+            }
             return;
         }
 
-        for (ZoteroItem item : zoteroItems) {
-            zoteroApiClient.downloadEbook(item, new ZoteroApiClient.FileCallback() {
-                @Override
-                public void onFileDownloaded(ZoteroItem item, String filePath) {
-                    CoverExtractor.extractCover(filePath, new CoverExtractor.CoverCallback() {
-                        @Override
-                        public void onCoverExtracted(String coverPath) {
-                            coverRepository.saveCoverFromZoteroItem(item, coverPath);
-                        }
+        List<ZoteroItem> requested = new ArrayList<>();
+        for (ZoteroItem item : items) {
+            if (!coverBatch.request(item.getKey())) {
+                continue;
+            }
+            // An earlier load still waiting for this cover hands it over
+            CoverFetchBatch previous = awaitedCovers.put(item.getKey(), coverBatch);
+            if (previous != null) {
+                previous.done();
+            }
+            requested.add(item);
+        }
+        coverJobs.enqueue(requested, lane);
+    }
 
-                        @Override
-                        public void onError(String errorMessage) {
-                            coverRepository.saveCoverFromZoteroItem(item, null);
-                        }
-                    });
-                }
+    /**
+     * Queue items to be merged into the grid, replacing items with the same id.
+     * Updates that arrive before the next frame are applied together.
+     * Safe to call from any thread.
+     */
+    private void postCoverUpdates(List<EpubCoverItem> items) {
+        if (items.isEmpty() || recyclerView == null) {
+            return;
+        }
 
-                @Override
-                public void onError(ZoteroItem item, String errorMessage) {
-                    coverRepository.saveCoverFromZoteroItem(item, null);
-                }
-            });
+        synchronized (pendingCoverUpdates) {
+            for (EpubCoverItem item : items) {
+                pendingCoverUpdates.put(item.getId(), item);
+            }
+            if (coverUpdateScheduled) {
+                return;
+            }
+            coverUpdateScheduled = true;
         }
+
+        recyclerView.postOnAnimation(this::applyPendingCoverUpdates);
+    }
+
+    private void applyPendingCoverUpdates() {
+        List<EpubCoverItem> updates;
+        synchronized (pendingCoverUpdates) {
+            updates = new ArrayList<>(pendingCoverUpdates.values());
+            pendingCoverUpdates.clear();
+            coverUpdateScheduled = false;
+        }
+
+        if (getActivity() == null || adapter == null || updates.isEmpty()) {
+            return;
+        }
+
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < coverItems.size(); i++) {
+            positions.put(coverItems.get(i).getId(), i);
+        }
+
+        for (EpubCoverItem update : updates) {
+            Integer position = positions.get(update.getId());
+            if (position != null) {
+                coverItems.set(position, update);
+            } else {
+                coverItems.add(update);
+            }
+        }
+
+        int sortMode = userPreferences.getSortMode();
+        CoverSorter.sortCovers(coverItems, sortMode);
+        adapter.notifyDataSetChanged();
+
+        hideEmptyState();
+        progressBar.setVisibility(View.GONE);
     }
 
     private void loadCachedCovers() {
@@ -314,7 +575,7 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
 
                 getActivity().runOnUiThread(() -> {
                     if (covers.isEmpty()) {
-                        showEmptyState("No cached covers found");
+                        showEmptyState(isOfflineMode ? "No cached covers found" : "No EPUB or PDF files found");
                     } else {
                         updateUI(covers);
                         if (isOfflineMode) {
@@ -368,90 +629,45 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
 
         Log.d("CollectionFragment", "Processing " + zoteroItems.size() + " Zotero items");
 
-        List<EpubCoverItem> newCoverItems = new ArrayList<>();
-        final int totalItems = zoteroItems.size();
-        final int[] processedCount = {0};
-
-        for (ZoteroItem item : zoteroItems) {
-            zoteroApiClient.downloadEbook(item, new ZoteroApiClient.FileCallback() {
-                @Override
-                public void onFileDownloaded(ZoteroItem item, String filePath) {
-                    CoverExtractor.extractCover(filePath, new CoverExtractor.CoverCallback() {
-                        @Override
-                        public void onCoverExtracted(String coverPath) {
-                            EpubCoverItem coverItem = new EpubCoverItem(
-                                    item.getKey(),
-                                    item.getTitle(),
-                                    coverPath,
-                                    item.getAuthors(),
-                                    userPreferences.getZoteroUsername()
-                            );
-
-                            synchronized (newCoverItems) {
-                                newCoverItems.add(coverItem);
-                                processedCount[0]++;
-
-                                new Thread(() -> {
-                                    coverRepository.saveCoverFromZoteroItemSync(item, coverPath);
-                                }).start();
-
-                                if (processedCount[0] == totalItems) {
-                                    updateUI(newCoverItems);
-                                }
-                            }
-                        }
+        if (getActivity() == null) return;
 
-                        @Override
-                        public void onError(String errorMessage) {
-                            EpubCoverItem coverItem = new EpubCoverItem(
-                                    item.getKey(),
-                                    item.getTitle(),
-                                    null,
-                                    item.getAuthors(),
-                                    userPreferences.getZoteroUsername()
-                            );
-
-                            synchronized (newCoverItems) {
-                                newCoverItems.add(coverItem);
-                                processedCount[0]++;
-
-                                new Thread(() -> {
-                                    coverRepository.saveCoverFromZoteroItemSync(item, null);
-                                }).start();
-
-                                if (processedCount[0] == totalItems) {
-                                    updateUI(newCoverItems);
-                                }
-                            }
-                        }
-                    });
-                }
+        // Show every item right away, keeping covers already on screen,
+        // then fill in the rest as they are extracted
+        getActivity().runOnUiThread(() -> {
+            Map<String, String> shownCovers = new HashMap<>();
+            for (EpubCoverItem shown : coverItems) {
+                shownCovers.put(shown.getId(), shown.getCoverPath());
+            }
 
-                @Override
-                public void onError(ZoteroItem item, String errorMessage) {
-                    EpubCoverItem coverItem = new EpubCoverItem(
-                            item.getKey(),
-                            item.getTitle() + " (Download failed)",
-                            null,
-                            item.getAuthors(),
-                            userPreferences.getZoteroUsername()
-                    );
-
-                    synchronized (newCoverItems) {
-                        newCoverItems.add(coverItem);
-                        processedCount[0]++;
-
-                        new Thread(() -> {
-                            coverRepository.saveCoverFromZoteroItemSync(item, null);
-                        }).start();
-
-                        if (processedCount[0] == totalItems) {
-                            updateUI(newCoverItems);
-                        }
-                    }
-                }
-            });
+            List<EpubCoverItem> metadataItems = new ArrayList<>();
+            for (ZoteroItem item : zoteroItems) {
+                metadataItems.add(new EpubCoverItem(item.getKey(), item.getTitle(), shownCovers.get(item.getKey()),
+                        item.getAuthors(), userPreferences.getZoteroUsername()));
+            }
+            updateUI(metadataItems);
+        });
+
+        // Store the items first, so the queued jobs can fill in their covers
+        // even if the app is closed before they run
+        List<EpubCoverEntity> entries = coverRepository.saveChangedAttachmentsSync(collectionKey, zoteroItems);
+        List<EpubCoverEntity> withCovers = new ArrayList<>();
+        List<ZoteroItem> missingCovers = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).getCoverPath() != null) {
+                withCovers.add(entries.get(i));
+            } else {
+                missingCovers.add(zoteroItems.get(i));
+            }
         }
+        postCoverUpdates(coverRepository.convertEntitiesToCoverItems(withCovers));
+
+        CoverFetchBatch coverBatch = new CoverFetchBatch(() -> {
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() -> swipeRefreshLayout.setRefreshing(false));
+            }
+        });
+        enqueueCovers(missingCovers, NetworkScheduler.Lane.VISIBLE_DOWNLOAD, coverBatch);
+        coverBatch.done();
     }
 
     private void updateUI(final List<EpubCoverItem> newItems) {
@@ -477,6 +693,7 @@ public class CollectionFragment extends Fragment implements CoverGridAdapter.Cov
 
             progressBar.setVisibility(View.GONE);
             swipeRefreshLayout.setRefreshing(false);
+            recyclerView.post(this::reportVisibleCovers);
         });
     }
 
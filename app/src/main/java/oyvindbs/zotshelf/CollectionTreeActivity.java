@@ -92,22 +92,15 @@ public class CollectionTreeActivity extends AppCompatActivity implements Collect
         
         Log.d(TAG, "Loading collections for user ID: '" + userId + "'");
 
-        getAllCollections(userId, apiKey, new ArrayList<>(), 0);
+        getAllCollections(userId, apiKey);
     }
 
-    private void getAllCollections(String userId, String apiKey, List<ZoteroCollection> allCollections, int start) {
-        zoteroApiClient.getCollectionsPaginated(userId, apiKey, start, 100, new ZoteroApiClient.ZoteroCallback<List<ZoteroCollection>>() {
+    private void getAllCollections(String userId, String apiKey) {
+        zoteroApiClient.getAllCollections(userId, apiKey, new ZoteroApiClient.ZoteroCallback<List<ZoteroCollection>>() {
             @Override
             public void onSuccess(List<ZoteroCollection> collections) {
-                Log.d(TAG, "Received " + collections.size() + " collections from API (start: " + start + ")");
-                
-                allCollections.addAll(collections);
-                
-                if (collections.size() == 100) {
-                    getAllCollections(userId, apiKey, allCollections, start + 100);
-                } else {
-                    processAllCollections(allCollections);
-                }
+                Log.d(TAG, "Received " + collections.size() + " collections from API");
+                processAllCollections(collections);
             }
             
             @Override
@@ -1,15 +1,16 @@
 package oyvindbs.zotshelf;
 
 import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.pdf.PdfRenderer;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.github.mertakdut.Reader;
 import com.github.mertakdut.exception.ReadingException;
@@ -17,7 +18,6 @@ import com.github.mertakdut.exception.ReadingException;
 public class CoverExtractor {
 
 private static final String TAG = "CoverExtractor";
-private static final Executor executor = Executors.newCachedThreadPool();
 
 public interface CoverCallback {
     void onCoverExtracted(String coverPath);
@@ -25,28 +25,144 @@ public interface CoverCallback {
 }
 
 /**
- * Extract cover from either EPUB or PDF file
+ * Extract cover from either EPUB or PDF file. Runs on the {@link ExtractionScheduler},
+ * and may wait for room in its queue when called off the main thread.
  * @param filePath Path to the EPUB or PDF file
+ * @param lane Lane the file was downloaded in, which orders the extraction
  * @param callback Callback to handle success/error
+ * @return A handle that drops the extraction if it hasn't started yet and
+ * suppresses the callback once cancelled
  */
-public static void extractCover(String filePath, CoverCallback callback) {
-    executor.execute(() -> {
-        try {
-            File file = new File(filePath);
-            String fileName = file.getName().toLowerCase();
-            
-            if (fileName.endsWith(".epub")) {
-                extractEpubCover(filePath, callback);
-            } else if (fileName.endsWith(".pdf")) {
-                extractPdfCover(filePath, callback);
-            } else {
-                callback.onError("Unsupported file type: " + fileName);
+public static CancelHandle extractCover(String filePath, NetworkScheduler.Lane lane, CoverCallback callback) {
+    CancelHandle cancelHandle = new CancelHandle();
+    CoverCallback guardedCallback = new CoverCallback() {
+        @Override
+        public void onCoverExtracted(String coverPath) {
+            if (!cancelHandle.isCancelled()) {
+                callback.onCoverExtracted(coverPath);
+            }
+        }
+
+        @Override
+        public void onError(String errorMessage) {
+            if (!cancelHandle.isCancelled()) {
+                callback.onError(errorMessage);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error extracting cover", e);
-            callback.onError("Failed to extract cover: " + e.getMessage());
         }
+    };
+
+    // Ebooks are stored under their item key
+    String fileName = new File(filePath).getName();
+    int dot = fileName.lastIndexOf('.');
+    String itemKey = dot > 0 ? fileName.substring(0, dot) : fileName;
+
+    ExtractionScheduler.getInstance().execute(itemKey, lane, cancelHandle, () -> {
+        if (cancelHandle.isCancelled()) {
+            return;
+        }
+        runExtraction(filePath, guardedCallback);
     });
+    return cancelHandle;
+}
+
+private static void runExtraction(String filePath, CoverCallback callback) {
+    try {
+        File file = new File(filePath);
+        String fileName = file.getName().toLowerCase();
+        
+        if (fileName.endsWith(".epub")) {
+            extractEpubCover(filePath, callback);
+        } else if (fileName.endsWith(".pdf")) {
+            extractPdfCover(filePath, callback);
+        } else {
+            callback.onError("Unsupported file type: " + fileName);
+        }
+    } catch (Exception e) {
+        Log.e(TAG, "Error extracting cover", e);
+        callback.onError("Failed to extract cover: " + e.getMessage());
+    }
+}
+
+/**
+ * Render the first page of a PDF into a cover file, on the calling thread
+ * @throws IOException If the PDF can't be opened or has no pages
+ * @throws SecurityException If the PDF is password protected
+ */
+static void renderPdfCover(File pdfFile, File coverFile) throws IOException {
+    // Use Android's PdfRenderer to get the first page
+    ParcelFileDescriptor fileDescriptor = null;
+    PdfRenderer pdfRenderer = null;
+    PdfRenderer.Page page = null;
+    Bitmap bitmap = null;
+    
+    try {
+        fileDescriptor = ParcelFileDescriptor.open(pdfFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        pdfRenderer = new PdfRenderer(fileDescriptor);
+        
+        if (pdfRenderer.getPageCount() == 0) {
+            throw new IOException("PDF has no pages");
+        }
+        page = pdfRenderer.openPage(0); // Get first page
+        
+        // Render just large enough to fill a grid cell
+        int[] gridSize = CoverThumbnails.getGridSize();
+        float scale = Math.max((float) gridSize[0] / page.getWidth(),
+                             (float) gridSize[1] / page.getHeight());
+        
+        int bitmapWidth = Math.round(page.getWidth() * scale);
+        int bitmapHeight = Math.round(page.getHeight() * scale);
+        
+        // PdfRenderer only renders into ARGB_8888. Pages are often transparent, so paint
+        // them on white as a reader would show them.
+        bitmap = BitmapPool.getInstance().get(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.WHITE);
+        page.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+        
+        // Save the thumbnails, which returns the bitmap to the pool
+        Bitmap rendered = bitmap;
+        bitmap = null;
+        CoverThumbnails.write(rendered, coverFile);
+        
+        // Set initial access time
+        touchFile(coverFile);
+    } finally {
+        // Clean up resources
+        if (bitmap != null) {
+            // Rendering failed before the thumbnails took the bitmap
+            BitmapPool.getInstance().put(bitmap);
+        }
+        if (page != null) {
+            try {
+                page.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing PDF page", e);
+            }
+        }
+        if (pdfRenderer != null) {
+            try {
+                pdfRenderer.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing PDF renderer", e);
+            }
+        }
+        if (fileDescriptor != null) {
+            try {
+                fileDescriptor.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing file descriptor", e);
+            }
+        }
+    }
+}
+
+/**
+ * Get the file the cover of an ebook is stored in, whether or not it has been extracted yet
+ */
+static File getCoverFile(File ebookFile) {
+    String name = ebookFile.getName();
+    int dot = name.lastIndexOf('.');
+    String baseName = dot > 0 ? name.substring(0, dot) : name;
+    return new File(new File(ebookFile.getParentFile(), "covers"), baseName + CoverThumbnails.EXTENSION);
 }
 
 private static void extractEpubCover(String epubFilePath, CoverCallback callback) {
@@ -60,8 +176,7 @@ private static void extractEpubCover(String epubFilePath, CoverCallback callback
             coverDir.mkdirs();
         }
         
-        String coverFileName = epubFile.getName().replace(".epub", ".jpg");
-        File coverFile = new File(coverDir, coverFileName);
+        File coverFile = getCoverFile(epubFile);
         
         // If cover is already extracted, update access time and return its path
         if (coverFile.exists()) {
@@ -70,7 +185,18 @@ private static void extractEpubCover(String epubFilePath, CoverCallback callback
             return;
         }
         
-        // Use the Mertakdut EpubParser library to get the cover
+        try {
+            if (copyDeclaredEpubCover(epubFile, coverFile)) {
+                touchFile(coverFile);
+                callback.onCoverExtracted(coverFile.getAbsolutePath());
+                return;
+            }
+            Log.d(TAG, "No cover declared in " + epubFile.getName() + ", trying EpubParser");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cover of " + epubFile.getName() + " directly, trying EpubParser", e);
+        }
+
+        // Fall back to the Mertakdut EpubParser library, which parses the whole book
         Reader reader = new Reader();
         reader.setMaxContentPerSection(1000);
         reader.setIsIncludingTextContent(false);
@@ -80,9 +206,7 @@ private static void extractEpubCover(String epubFilePath, CoverCallback callback
             byte[] coverData = reader.getCoverImage();
             
             if (coverData != null && coverData.length > 0) {
-                FileOutputStream output = new FileOutputStream(coverFile);
-                output.write(coverData);
-                output.close();
+                CoverThumbnails.write(coverData, coverFile);
                 
                 // Set initial access time
                 touchFile(coverFile);
@@ -101,6 +225,42 @@ private static void extractEpubCover(String epubFilePath, CoverCallback callback
     }
 }
 
+/**
+ * Make thumbnails of the cover image an EPUB declares in its package document,
+ * reading only container.xml, the package document and the image itself
+ * @return false if the book declares no cover image, or names an entry it doesn't have
+ * @throws IOException If the archive or its XML can't be read
+ */
+static boolean copyDeclaredEpubCover(File epubFile, File coverFile) throws IOException {
+    try (ZipFile zip = new ZipFile(epubFile)) {
+        ZipEntry container = zip.getEntry(EpubPackageParser.CONTAINER_PATH);
+        if (container == null) {
+            return false;
+        }
+        String opfPath;
+        try (InputStream input = zip.getInputStream(container)) {
+            opfPath = EpubPackageParser.parseRootfilePath(input);
+        }
+        ZipEntry opf = opfPath != null ? zip.getEntry(opfPath) : null;
+        if (opf == null) {
+            return false;
+        }
+        String coverPath;
+        try (InputStream input = zip.getInputStream(opf)) {
+            coverPath = EpubPackageParser.findCoverImagePath(input, opfPath);
+        }
+        ZipEntry cover = coverPath != null ? zip.getEntry(coverPath) : null;
+        if (cover == null || cover.isDirectory()) {
+            return false;
+        }
+
+        // Decoded straight from the archive, which is read once for the bounds and
+        // once for the sampled image
+        CoverThumbnails.write(() -> zip.getInputStream(cover), coverFile);
+        return true;
+    }
+}
+
 private static void extractPdfCover(String pdfFilePath, CoverCallback callback) {
     try {
         // Create a unique file for the cover image
@@ -112,8 +272,7 @@ private static void extractPdfCover(String pdfFilePath, CoverCallback callback)
             coverDir.mkdirs();
         }
         
-        String coverFileName = pdfFile.getName().replace(".pdf", ".jpg");
-        File coverFile = new File(coverDir, coverFileName);
+        File coverFile = getCoverFile(pdfFile);
         
         // If cover is already extracted, update access time and return its path
         if (coverFile.exists()) {
@@ -122,75 +281,15 @@ private static void extractPdfCover(String pdfFilePath, CoverCallback callback)
             return;
         }
         
-        // Use Android's PdfRenderer to get the first page
-        ParcelFileDescriptor fileDescriptor = null;
-        PdfRenderer pdfRenderer = null;
-        PdfRenderer.Page page = null;
-        
         try {
-            fileDescriptor = ParcelFileDescriptor.open(pdfFile, ParcelFileDescriptor.MODE_READ_ONLY);
-            pdfRenderer = new PdfRenderer(fileDescriptor);
-            
-            if (pdfRenderer.getPageCount() > 0) {
-                page = pdfRenderer.openPage(0); // Get first page
-                
-                // Calculate dimensions for the bitmap
-                // Scale down to reasonable size while maintaining aspect ratio
-                int maxDimension = 600; // Maximum width or height
-                float scale = Math.min((float) maxDimension / page.getWidth(), 
-                                     (float) maxDimension / page.getHeight());
-                
-                int bitmapWidth = Math.round(page.getWidth() * scale);
-                int bitmapHeight = Math.round(page.getHeight() * scale);
-                
-                // Create bitmap and render page to it
-                Bitmap bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-                page.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
-                
-                // Save bitmap to file
-                FileOutputStream output = new FileOutputStream(coverFile);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, output);
-                output.close();
-                
-                // Clean up bitmap
-                bitmap.recycle();
-                
-                // Set initial access time
-                touchFile(coverFile);
-                callback.onCoverExtracted(coverFile.getAbsolutePath());
-            } else {
-                callback.onError("PDF has no pages");
-            }
-            
+            renderPdfCover(pdfFile, coverFile);
+            callback.onCoverExtracted(coverFile.getAbsolutePath());
         } catch (IOException e) {
             Log.e(TAG, "Error rendering PDF page", e);
             callback.onError("Failed to render PDF page: " + e.getMessage());
         } catch (SecurityException e) {
             Log.e(TAG, "PDF is password protected or corrupted", e);
             callback.onError("PDF is password protected or corrupted");
-        } finally {
-            // Clean up resources
-            if (page != null) {
-                try {
-                    page.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error closing PDF page", e);
-                }
-            }
-            if (pdfRenderer != null) {
-                try {
-                    pdfRenderer.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error closing PDF renderer", e);
-                }
-            }
-            if (fileDescriptor != null) {
-                try {
-                    fileDescriptor.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error closing file descriptor", e);
-                }
-            }
         }
         
     } catch (Exception e) {
@@ -202,7 +301,7 @@ private static void extractPdfCover(String pdfFilePath, CoverCallback callback)
 /**
  * Update the last accessed time of a file by "touching" it
  */
-private static void touchFile(File file) {
+static void touchFile(File file) {
     try {
         if (file.exists()) {
             file.setLastModified(System.currentTimeMillis());
@@ -0,0 +1,279 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import oyvindbs.zotshelf.database.AppDatabase;
+import oyvindbs.zotshelf.database.CoverJobDao;
+import oyvindbs.zotshelf.database.CoverJobEntity;
+import oyvindbs.zotshelf.database.EpubCoverEntity;
+import oyvindbs.zotshelf.database.EpubCoverRepository;
+
+/**
+ * Process-wide queue of cover fetches, kept in the database so that the covers of a
+ * large library keep coming in across restarts. Each job goes from pending through
+ * downloading and extracting to done, or back to pending after a failure until it
+ * has used up its attempts. Jobs that were running when the process died are picked
+ * up again by {@link #resume()}.
+ *
+ * Only a few jobs are handed to {@link RemoteCoverFetcher} at a time, so the network
+ * scheduler isn't flooded with thousands of tasks that would all be lost together.
+ * Jobs only run while {@link NetworkPolicy} allows downloads; on metered or roaming
+ * links they stay pending, and start by themselves once the device is on Wi-Fi again.
+ */
+public final class CoverJobQueue {
+
+    private static final String TAG = "CoverJobQueue";
+    private static final int MAX_ACTIVE_JOBS = 4;
+    private static final int MAX_ATTEMPTS = 3;
+    // A job that used up its attempts is only tried again after this, or for a new file
+    private static final long FAILED_RETRY_DELAY_MS = 24 * 60 * 60 * 1000L;
+
+    public interface JobListener {
+        void onCoverFetched(EpubCoverEntity entry);
+        void onJobFailed(String itemKey, String errorMessage);
+    }
+
+    private static volatile CoverJobQueue instance;
+
+    private final CoverJobDao jobs;
+    private final EpubCoverRepository coverRepository;
+    private final RemoteCoverFetcher coverFetcher;
+    private final NetworkPolicy networkPolicy;
+    private final StorageBudget storageBudget;
+    // Bookkeeping runs on one thread, so the database and the running jobs agree
+    private final Executor executor = Executors.newSingleThreadExecutor();
+    private final Map<String, CancelHandle> active = new HashMap<>();
+    private final List<JobListener> listeners = new CopyOnWriteArrayList<>();
+    private boolean resumed = false;
+
+    public static CoverJobQueue getInstance(Context context) {
+        if (instance == null) {
+            synchronized (CoverJobQueue.class) {
+                if (instance == null) {
+                    instance = new CoverJobQueue(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private CoverJobQueue(Context context) {
+        jobs = AppDatabase.getInstance(context).coverJobDao();
+        coverRepository = new EpubCoverRepository(context);
+        coverFetcher = new RemoteCoverFetcher(context, new ZoteroApiClient(context));
+        networkPolicy = NetworkPolicy.getInstance(context);
+        storageBudget = StorageBudget.getInstance(context);
+        networkPolicy.addListener(linkType -> executor.execute(() -> {
+            if (networkPolicy.allowsBinaryDownloads()) {
+                startPendingJobs();
+            } else {
+                deferActiveJobs();
+            }
+        }));
+    }
+
+    /**
+     * @return true if jobs queued now will wait for an unmetered network
+     */
+    public boolean isDeferring() {
+        return !networkPolicy.allowsBinaryDownloads();
+    }
+
+    public void addListener(JobListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(JobListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queue cover fetches for attachments that are already stored in the cover cache.
+     * A job already queued for an item keeps its place, moving up if this lane
+     * comes first; finished jobs start over. Failed jobs start over once a day or when
+     * the file changes, and are otherwise reported as failed again right away.
+     * @param lane Scheduler lane the fetches run in
+     */
+    public void enqueue(List<ZoteroItem> items, NetworkScheduler.Lane lane) {
+        if (items.isEmpty()) {
+            return;
+        }
+        executor.execute(() -> {
+            resumeInterrupted();
+            long now = System.currentTimeMillis();
+            for (ZoteroItem item : items) {
+                CoverJobEntity existing = jobs.getByKey(item.getKey());
+                if (existing != null && CoverJobEntity.STATE_FAILED.equals(existing.getState())
+                        && !isRetryDue(existing, item, now)) {
+                    for (JobListener listener : listeners) {
+                        listener.onJobFailed(item.getKey(), existing.getLastError());
+                    }
+                    continue;
+                }
+                if (existing != null && (active.containsKey(item.getKey())
+                        || CoverJobEntity.STATE_PENDING.equals(existing.getState()))) {
+                    if (lane.ordinal() < existing.getPriority()) {
+                        existing.setPriority(lane.ordinal());
+                        jobs.insert(existing);
+                    }
+                    continue;
+                }
+                jobs.insert(createJob(item, lane));
+            }
+            startPendingJobs();
+        });
+    }
+
+    private static boolean isRetryDue(CoverJobEntity job, ZoteroItem item, long now) {
+        if (now - job.getUpdatedAt() >= FAILED_RETRY_DELAY_MS) {
+            return true;
+        }
+        boolean md5Changed = job.getMd5() != null && item.getMd5() != null
+                && !job.getMd5().equalsIgnoreCase(item.getMd5());
+        boolean mtimeChanged = job.getMtime() >= 0 && item.getMtime() >= 0 && job.getMtime() != item.getMtime();
+        return md5Changed || mtimeChanged;
+    }
+
+    /**
+     * Pick up the jobs left over from an earlier run of the app
+     */
+    public void resume() {
+        executor.execute(() -> {
+            resumeInterrupted();
+            startPendingJobs();
+        });
+    }
+
+    private void resumeInterrupted() {
+        if (resumed) {
+            return;
+        }
+        resumed = true;
+
+        jobs.deleteDone();
+        int interrupted = jobs.requeueInterrupted();
+        // A book that takes the process down with it is eventually given up on
+        int exhausted = jobs.failExhausted(MAX_ATTEMPTS, "Interrupted too many times");
+        if (interrupted > 0) {
+            Log.d(TAG, "Resuming " + interrupted + " interrupted cover jobs, " + exhausted + " given up");
+        }
+    }
+
+    private void startPendingJobs() {
+        if (!networkPolicy.allowsBinaryDownloads()) {
+            return;
+        }
+        int free = MAX_ACTIVE_JOBS - active.size();
+        if (free <= 0) {
+            return;
+        }
+        for (CoverJobEntity job : jobs.getPending(free)) {
+            start(job);
+        }
+    }
+
+    /**
+     * Stop the running jobs when the network stops allowing downloads. They go back
+     * to pending without using up an attempt, and resume their .part files later.
+     */
+    private void deferActiveJobs() {
+        if (active.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Deferring " + active.size() + " cover jobs until the network is unmetered");
+        long now = System.currentTimeMillis();
+        for (String itemKey : new ArrayList<>(active.keySet())) {
+            active.remove(itemKey).cancel();
+            jobs.updateState(itemKey, CoverJobEntity.STATE_PENDING, now);
+        }
+    }
+
+    private void start(CoverJobEntity job) {
+        String itemKey = job.getItemKey();
+        jobs.updateState(itemKey, CoverJobEntity.STATE_DOWNLOADING, System.currentTimeMillis());
+
+        ZoteroItem item = ZoteroItem.fromCachedEntry(itemKey, job.getTitle(), job.getMimeType(),
+                job.getFileName(), job.getDownloadUrl(), job.getMd5(), job.getMtime(), job.getFileSize());
+        NetworkScheduler.Lane lane = NetworkScheduler.Lane.values()[job.getPriority()];
+
+        active.put(itemKey, coverFetcher.fetchCover(item, lane,
+                extracting -> executor.execute(() -> {
+                    if (active.containsKey(itemKey)) {
+                        jobs.updateState(itemKey, CoverJobEntity.STATE_EXTRACTING, System.currentTimeMillis());
+                    }
+                }),
+                new RemoteCoverFetcher.CoverCallback() {
+            @Override
+            public void onCoverFetched(ZoteroItem item, String coverPath) {
+                executor.execute(() -> finish(itemKey, coverPath, null));
+            }
+
+            @Override
+            public void onError(ZoteroItem item, String errorMessage) {
+                executor.execute(() -> finish(itemKey, null, errorMessage));
+            }
+        }));
+    }
+
+    private void finish(String itemKey, String coverPath, String errorMessage) {
+        if (active.remove(itemKey) == null) {
+            // Deferred while the result was on its way; the job runs again later
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        if (coverPath != null) {
+            coverRepository.updateCoverPathSync(itemKey, coverPath);
+            jobs.updateState(itemKey, CoverJobEntity.STATE_DONE, now);
+            storageBudget.trimAsync();
+            EpubCoverEntity entry = coverRepository.getEntrySync(itemKey);
+            for (JobListener listener : listeners) {
+                if (entry != null) {
+                    listener.onCoverFetched(entry);
+                } else {
+                    // A sync removed the entry meanwhile; waiting loads still hear back
+                    listener.onJobFailed(itemKey, "Removed from the library");
+                }
+            }
+        } else {
+            CoverJobEntity job = jobs.getByKey(itemKey);
+            if (job != null) {
+                job.setRetryCount(job.getRetryCount() + 1);
+                job.setLastError(errorMessage);
+                job.setUpdatedAt(now);
+                if (job.getRetryCount() < MAX_ATTEMPTS) {
+                    // Back of its lane, so one bad file doesn't hold up the rest
+                    job.setState(CoverJobEntity.STATE_PENDING);
+                    job.setEnqueuedAt(now);
+                } else {
+                    job.setState(CoverJobEntity.STATE_FAILED);
+                }
+                jobs.insert(job);
+            }
+            if (job == null || CoverJobEntity.STATE_FAILED.equals(job.getState())) {
+                Log.w(TAG, "Giving up on cover of " + itemKey + ": " + errorMessage);
+                for (JobListener listener : listeners) {
+                    listener.onJobFailed(itemKey, errorMessage);
+                }
+            }
+        }
+
+        startPendingJobs();
+    }
+
+    private static CoverJobEntity createJob(ZoteroItem item, NetworkScheduler.Lane lane) {
+        String downloadUrl = item.getLinks() != null && item.getLinks().getEnclosure() != null
+                ? item.getLinks().getEnclosure().getHref() : null;
+        return new CoverJobEntity(item.getKey(), item.getTitle(), item.getMimeType(), item.getFilename(),
+                downloadUrl, item.getMd5(), item.getMtime(), item.getFileSize(), lane.ordinal());
+    }
+}
@@ -0,0 +1,255 @@
+package oyvindbs.zotshelf;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Turns cover images into the two thumbnails the app shows: one for the grid and a
+ * smaller one for the widget, both sized from the display and stored as WebP. The
+ * grid thumbnail is the cover file itself; the widget thumbnail sits next to it.
+ *
+ * Embedded covers are often multi-megabyte PNGs. Decoding them with inSampleSize and
+ * storing thumbnails means no screen ever decodes more pixels than it shows.
+ *
+ * Covers are stored opaque, composited on white in RGB_565, which takes half the
+ * memory of ARGB_8888 per bitmap. Decoding and scaling reuse bitmaps from BitmapPool.
+ */
+public final class CoverThumbnails {
+
+    public static final String EXTENSION = ".webp";
+    private static final String WIDGET_SUFFIX = ".widget" + EXTENSION;
+    static final String TEMP_SUFFIX = ".tmp";
+
+    // Grid cells as laid out by CollectionFragment and grid_item_cover.xml
+    private static final int GRID_MIN_COLUMNS = 2;
+    private static final int GRID_COLUMN_WIDTH_DP = 120;
+    private static final int GRID_COVER_HEIGHT_DP = 180;
+    // Widget items size themselves to the image
+    private static final int WIDGET_COVER_HEIGHT_DP = 100;
+    private static final int WEBP_QUALITY = 80;
+
+    private CoverThumbnails() {
+    }
+
+    /**
+     * Get the number of grid columns for a display
+     */
+    public static int getGridColumnCount(DisplayMetrics metrics) {
+        int screenWidthDp = (int) (metrics.widthPixels / metrics.density);
+        return Math.max(GRID_MIN_COLUMNS, screenWidthDp / GRID_COLUMN_WIDTH_DP);
+    }
+
+    /**
+     * Get the widget thumbnail that goes with a cover file
+     */
+    public static File getWidgetFile(File coverFile) {
+        String name = coverFile.getName();
+        String baseName = name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+        return new File(coverFile.getParentFile(), baseName + WIDGET_SUFFIX);
+    }
+
+    /**
+     * Check whether a file in the cover directory is a widget thumbnail
+     */
+    public static boolean isWidgetFile(File file) {
+        return file.getName().endsWith(WIDGET_SUFFIX);
+    }
+
+    /**
+     * Delete a cover and its widget thumbnail
+     */
+    public static void delete(File coverFile) {
+        coverFile.delete();
+        getWidgetFile(coverFile).delete();
+    }
+
+    /**
+     * Get the smallest size a cover needs to fill a grid cell, in pixels
+     * @return {width, height}
+     */
+    static int[] getGridSize() {
+        DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        int columnWidth = metrics.widthPixels / getGridColumnCount(metrics);
+        return new int[] { columnWidth, Math.round(GRID_COVER_HEIGHT_DP * metrics.density) };
+    }
+
+    /**
+     * Opens an encoded image, once for its bounds and again to decode it, so the
+     * image never has to be held in memory in full
+     */
+    public interface ImageSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Write the thumbnails of an encoded image
+     * @throws IOException If the image can't be decoded or the thumbnails written
+     */
+    public static void write(byte[] imageData, File coverFile) throws IOException {
+        write(() -> new ByteArrayInputStream(imageData), coverFile);
+    }
+
+    /**
+     * Write the thumbnails of an encoded image, reading it from the source twice
+     * @throws IOException If the image can't be read or decoded or the thumbnails written
+     */
+    public static void write(ImageSource source, File coverFile) throws IOException {
+        int[] gridSize = getGridSize();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream input = source.open()) {
+            BitmapFactory.decodeStream(input, null, options);
+        }
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, gridSize[0], gridSize[1]);
+        options.inJustDecodeBounds = false;
+        // JPEG has no alpha channel, so it loses nothing decoded as RGB_565. Other
+        // formats keep theirs until writeScaled composites them on white.
+        Bitmap.Config config = "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = BitmapPool.getInstance().getReusable(
+                    sampledWidth * sampledHeight * getBytesPerPixel(config), config);
+        }
+
+        Bitmap bitmap;
+        try (InputStream input = source.open()) {
+            bitmap = BitmapFactory.decodeStream(input, null, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't reuse the pooled bitmap
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            try (InputStream input = source.open()) {
+                bitmap = BitmapFactory.decodeStream(input, null, options);
+            }
+        }
+        write(bitmap, coverFile);
+    }
+
+    /**
+     * Write the thumbnails of a decoded image, returning it to the pool afterwards
+     * @param bitmap The image, or null if decoding failed
+     * @throws IOException If the image is null or the thumbnails can't be written
+     */
+    public static void write(Bitmap bitmap, File coverFile) throws IOException {
+        if (bitmap == null) {
+            throw new IOException("Could not decode cover image");
+        }
+        File coverDir = coverFile.getParentFile();
+        if (!coverDir.exists()) {
+            coverDir.mkdirs();
+        }
+
+        int[] gridSize = getGridSize();
+        try {
+            // The widget thumbnail first, so a cover never exists without it
+            writeScaled(bitmap, 0, getWidgetHeight(), getWidgetFile(coverFile));
+            writeScaled(bitmap, gridSize[0], gridSize[1], coverFile);
+        } finally {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    /**
+     * Decode a stored cover for an area of the given size, sampling down large legacy covers
+     * @return The bitmap, or null if the file can't be decoded
+     */
+    public static Bitmap decodeSampled(File coverFile, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(coverFile.getAbsolutePath(), options);
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(coverFile.getAbsolutePath(), options);
+    }
+
+    /**
+     * Get the widget cover height in pixels
+     */
+    public static int getWidgetHeight() {
+        return Math.round(WIDGET_COVER_HEIGHT_DP * Resources.getSystem().getDisplayMetrics().density);
+    }
+
+    /**
+     * Largest power of two that keeps the image at least as large as the target in
+     * both dimensions, so scaling down afterwards never has to scale up
+     * @param targetWidth Minimum width, or 0 to go by the height alone
+     */
+    static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scale an image so it covers the target size with its aspect ratio kept, and store it
+     * @param targetWidth Minimum width, or 0 to go by the height alone
+     */
+    private static void writeScaled(Bitmap bitmap, int targetWidth, int targetHeight, File file) throws IOException {
+        float scale = Math.min(1, Math.max((float) targetWidth / bitmap.getWidth(),
+                (float) targetHeight / bitmap.getHeight()));
+        Bitmap scaled = bitmap;
+        if (scale < 1 || bitmap.hasAlpha()) {
+            // Book covers have no use for transparency
+            int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+            int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+            scaled = BitmapPool.getInstance().get(width, height, Bitmap.Config.RGB_565);
+            Canvas canvas = new Canvas(scaled);
+            canvas.drawColor(Color.WHITE);
+            canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        }
+
+        // Write next to the file and rename, so a thumbnail is never seen half written
+        File tempFile = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        try (OutputStream output = new FileOutputStream(tempFile)) {
+            if (!scaled.compress(getWebpFormat(), WEBP_QUALITY, output)) {
+                throw new IOException("Could not encode " + file.getName());
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        } finally {
+            if (scaled != bitmap) {
+                BitmapPool.getInstance().put(scaled);
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not save " + file.getName());
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 ? 2 : 4;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getWebpFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+        }
+        return Bitmap.CompressFormat.WEBP;
+    }
+}
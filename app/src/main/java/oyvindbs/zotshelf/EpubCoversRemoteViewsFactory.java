@@ -6,25 +6,40 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import oyvindbs.zotshelf.database.EpubCoverEntity;
+import oyvindbs.zotshelf.database.EpubCoverRepository;
 
 public class EpubCoversRemoteViewsFactory implements RemoteViewsService.RemoteViewsFactory {
 
+    private static final String TAG = "EpubCoversFactory";
+    // Longest a refresh waits for missing covers before showing placeholders
+    private static final long COVER_WAIT_SECONDS = 20;
+
     private Context context;
     private List<EpubCoverItem> coverItems = new ArrayList<>();
     private UserPreferences userPreferences;
     private ZoteroApiClient zoteroApiClient;
+    private EpubCoverRepository coverRepository;
+    private LibrarySyncEngine syncEngine;
 
     public EpubCoversRemoteViewsFactory(Context context, Intent intent) {
         this.context = context;
         this.userPreferences = new UserPreferences(context);
         this.zoteroApiClient = new ZoteroApiClient(context);
+        this.coverRepository = new EpubCoverRepository(context);
+        this.syncEngine = new LibrarySyncEngine(context, zoteroApiClient);
     }
 
     @Override
@@ -53,80 +68,28 @@ public void onDataSetChanged() {
     String userId = userPreferences.getZoteroUserId();
     String apiKey = userPreferences.getZoteroApiKey();
     String collectionKey = userPreferences.getSelectedCollectionKey();
-    
-    coverItems.clear();
 
-    // Use the new paginated method that gets ALL items
-    zoteroApiClient.getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, new ZoteroApiClient.ZoteroCallback<List<ZoteroItem>>() {
+    // Bring the cache up to date; an unchanged library costs a single request
+    syncEngine.sync(userId, apiKey, collectionKey, new LibrarySyncEngine.SyncCallback() {
         @Override
-        public void onSuccess(List<ZoteroItem> zoteroItems) {
-            for (ZoteroItem item : zoteroItems) {
-                final CountDownLatch itemLatch = new CountDownLatch(1);
-                
-                zoteroApiClient.downloadEbook(item, new ZoteroApiClient.FileCallback() {
-                    @Override
-                    public void onFileDownloaded(ZoteroItem item, String filePath) {
-                        // Extract cover using the new universal extractor
-                        CoverExtractor.extractCover(filePath, new CoverExtractor.CoverCallback() {
-                            @Override
-                            public void onCoverExtracted(String coverPath) {
-                                EpubCoverItem coverItem = new EpubCoverItem(
-                                        item.getKey(),
-                                        item.getTitle(),
-                                        coverPath,
-                                        item.getAuthors(),
-                                        userPreferences.getZoteroUsername()
-                                );
-                                
-                                coverItems.add(coverItem);
-                                itemLatch.countDown();
-                            }
-
-                            @Override
-                            public void onError(String errorMessage) {
-                                // If cover extraction fails, still add the item but with a placeholder
-                                EpubCoverItem coverItem = new EpubCoverItem(
-                                        item.getKey(),
-                                        item.getTitle(),
-                                        null, // null cover path will show placeholder
-                                        item.getAuthors(),
-                                        userPreferences.getZoteroUsername()
-                                );
-                                
-                                coverItems.add(coverItem);
-                                itemLatch.countDown();
-                            }
-                        });
-                    }
-
-                    @Override
-                    public void onError(ZoteroItem item, String errorMessage) {
-                        // If download fails, still add the item but with placeholder
-                        EpubCoverItem coverItem = new EpubCoverItem(
-                                item.getKey(),
-                                item.getTitle(),
-                                null, // null cover path will show placeholder
-                                item.getAuthors(),
-                                userPreferences.getZoteroUsername()
-                        );
-                        
-                        coverItems.add(coverItem);
-                        itemLatch.countDown();
-                    }
-                });
-                
-                try {
-                    itemLatch.await(); // Wait for this item to complete
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        public void onSyncComplete(LibraryDelta delta) {
+            // Fetched through the queue, so broken files keep their retry limit
+            List<ZoteroItem> missing = new ArrayList<>();
+            for (EpubCoverEntity entry : coverRepository.getEntriesMissingCoversSync(collectionKey)) {
+                missing.add(EpubCoverRepository.toZoteroItem(entry));
+            }
+            if (!NetworkPolicy.getInstance(context).allowsBinaryDownloads()) {
+                // Metered or roaming; the queue fetches these once on Wi-Fi
+                CoverJobQueue.getInstance(context).enqueue(missing, NetworkScheduler.Lane.PREFETCH);
+            } else {
+                awaitCovers(missing);
             }
-            
             latch.countDown();
         }
 
         @Override
         public void onError(String errorMessage) {
+            // Fall through to whatever is already cached
             latch.countDown();
         }
     });
@@ -136,8 +99,60 @@ public void onDataSetChanged() {
     } catch (InterruptedException e) {
         e.printStackTrace();
     }
+
+    coverItems.clear();
+    coverItems.addAll(coverRepository.getFilteredCoversForCollectionSync(collectionKey));
 }
 
+    /**
+     * Queue cover fetches and wait a while for them, so most covers are in this refresh.
+     * Covers that take longer are shown by the next one.
+     */
+    private void awaitCovers(List<ZoteroItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        final Set<String> waiting = new HashSet<>();
+        for (ZoteroItem item : items) {
+            waiting.add(item.getKey());
+        }
+        final CountDownLatch coversLatch = new CountDownLatch(waiting.size());
+        CoverJobQueue.JobListener listener = new CoverJobQueue.JobListener() {
+            @Override
+            public void onCoverFetched(EpubCoverEntity entry) {
+                countDown(entry.getId());
+            }
+
+            @Override
+            public void onJobFailed(String itemKey, String errorMessage) {
+                // Leave the cover empty; the placeholder is shown instead
+                countDown(itemKey);
+            }
+
+            private void countDown(String itemKey) {
+                synchronized (waiting) {
+                    if (!waiting.remove(itemKey)) {
+                        return;
+                    }
+                }
+                coversLatch.countDown();
+            }
+        };
+
+        CoverJobQueue jobQueue = CoverJobQueue.getInstance(context);
+        jobQueue.addListener(listener);
+        try {
+            jobQueue.enqueue(items, NetworkScheduler.Lane.PREFETCH);
+            if (!coversLatch.await(COVER_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                Log.d(TAG, coversLatch.getCount() + " covers still loading, leaving them for the next refresh");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            jobQueue.removeListener(listener);
+        }
+    }
+
     @Override
     public void onDestroy() {
         coverItems.clear();
@@ -160,8 +175,15 @@ public void onDataSetChanged() {
         // Set cover image
         if (item.getCoverPath() != null) {
             File coverFile = new File(item.getCoverPath());
-            if (coverFile.exists()) {
-                Bitmap bitmap = BitmapFactory.decodeFile(item.getCoverPath());
+            File widgetFile = CoverThumbnails.getWidgetFile(coverFile);
+            Bitmap bitmap = null;
+            if (widgetFile.exists()) {
+                bitmap = BitmapFactory.decodeFile(widgetFile.getAbsolutePath());
+            } else if (coverFile.exists()) {
+                // Covers stored before thumbnails were made
+                bitmap = CoverThumbnails.decodeSampled(coverFile, 0, CoverThumbnails.getWidgetHeight());
+            }
+            if (bitmap != null) {
                 views.setImageViewBitmap(R.id.imageWidgetCover, bitmap);
             } else {
                 views.setImageViewResource(R.id.imageWidgetCover, R.drawable.placeholder_cover);
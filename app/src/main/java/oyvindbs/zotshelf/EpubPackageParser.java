@@ -0,0 +1,184 @@
+package oyvindbs.zotshelf;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the cover image of an EPUB from its two small XML files: META-INF/container.xml,
+ * which points to the package (OPF) document, and the OPF manifest, which names the
+ * cover. Lets covers be read without opening, or even downloading, the whole book.
+ */
+public final class EpubPackageParser {
+
+    public static final String CONTAINER_PATH = "META-INF/container.xml";
+
+    private static class ManifestItem {
+        String id;
+        String href;
+        String mediaType;
+        String properties;
+    }
+
+    private EpubPackageParser() {
+    }
+
+    /**
+     * Get the path of the package document from container.xml
+     * @return The path inside the archive, or null if container.xml names none
+     */
+    public static String parseRootfilePath(byte[] containerXml) throws IOException {
+        return parseRootfilePath(new ByteArrayInputStream(containerXml));
+    }
+
+    /**
+     * Get the path of the package document from a container.xml stream
+     * @return The path inside the archive, or null if container.xml names none
+     */
+    public static String parseRootfilePath(InputStream containerXml) throws IOException {
+        try {
+            XmlPullParser parser = newParser(containerXml);
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG && "rootfile".equals(parser.getName())) {
+                    String fullPath = parser.getAttributeValue(null, "full-path");
+                    if (fullPath != null && !fullPath.isEmpty()) {
+                        return fullPath;
+                    }
+                }
+            }
+            return null;
+        } catch (XmlPullParserException e) {
+            throw new IOException("Invalid container.xml: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the path of the cover image from the package document. Looks for the EPUB 3
+     * cover-image property, then the EPUB 2 cover meta, then an image named like a cover.
+     * @param opfPath Path of the package document, which hrefs are relative to
+     * @return The image's path inside the archive, or null if no cover image is declared
+     */
+    public static String findCoverImagePath(byte[] opf, String opfPath) throws IOException {
+        return findCoverImagePath(new ByteArrayInputStream(opf), opfPath);
+    }
+
+    /**
+     * Get the path of the cover image from a package document stream, which is parsed
+     * as it is read rather than loaded first
+     * @param opfPath Path of the package document, which hrefs are relative to
+     * @return The image's path inside the archive, or null if no cover image is declared
+     */
+    public static String findCoverImagePath(InputStream opf, String opfPath) throws IOException {
+        List<ManifestItem> manifest = new ArrayList<>();
+        String coverId = null;
+
+        try {
+            XmlPullParser parser = newParser(opf);
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.END_TAG && "manifest".equals(parser.getName())) {
+                    // The metadata comes first, so the spine and guide can be left unread
+                    break;
+                }
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                if ("item".equals(parser.getName())) {
+                    ManifestItem item = new ManifestItem();
+                    item.id = parser.getAttributeValue(null, "id");
+                    item.href = parser.getAttributeValue(null, "href");
+                    item.mediaType = parser.getAttributeValue(null, "media-type");
+                    item.properties = parser.getAttributeValue(null, "properties");
+                    if (item.href != null) {
+                        manifest.add(item);
+                    }
+                } else if ("meta".equals(parser.getName())
+                        && "cover".equals(parser.getAttributeValue(null, "name"))) {
+                    coverId = parser.getAttributeValue(null, "content");
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Invalid package document: " + e.getMessage(), e);
+        }
+
+        ManifestItem cover = null;
+        for (ManifestItem item : manifest) {
+            if (item.properties != null && item.properties.contains("cover-image")) {
+                cover = item;
+                break;
+            }
+        }
+        if (cover == null && coverId != null) {
+            for (ManifestItem item : manifest) {
+                if (coverId.equals(item.id) && isImage(item)) {
+                    cover = item;
+                    break;
+                }
+            }
+        }
+        if (cover == null) {
+            for (ManifestItem item : manifest) {
+                String name = (item.id + " " + item.href).toLowerCase(Locale.ROOT);
+                if (isImage(item) && name.contains("cover")) {
+                    cover = item;
+                    break;
+                }
+            }
+        }
+
+        return cover != null ? resolvePath(opfPath, cover.href) : null;
+    }
+
+    /**
+     * Resolve an href from a document inside the archive to an archive path
+     */
+    public static String resolvePath(String basePath, String href) {
+        int fragment = href.indexOf('#');
+        if (fragment >= 0) {
+            href = href.substring(0, fragment);
+        }
+        href = Uri.decode(href);
+
+        int slash = basePath.lastIndexOf('/');
+        String path = slash >= 0 ? basePath.substring(0, slash + 1) + href : href;
+
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else {
+                segments.add(segment);
+            }
+        }
+        return TextUtils.join("/", segments);
+    }
+
+    private static boolean isImage(ManifestItem item) {
+        if (item.mediaType != null) {
+            return item.mediaType.startsWith("image/");
+        }
+        String href = item.href.toLowerCase(Locale.ROOT);
+        return href.endsWith(".jpg") || href.endsWith(".jpeg") || href.endsWith(".png") || href.endsWith(".gif");
+    }
+
+    private static XmlPullParser newParser(InputStream xml) throws XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(xml, null);
+        return parser;
+    }
+}
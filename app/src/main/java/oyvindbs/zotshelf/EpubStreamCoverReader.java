@@ -0,0 +1,97 @@
+package oyvindbs.zotshelf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Picks the cover image out of an EPUB while it downloads, reading the archive's
+ * entries in the order they arrive. Only container.xml, the package document and
+ * images that may turn out to be the cover are buffered; everything else streams
+ * straight through to the file.
+ *
+ * The cover is handed to the listener as soon as it has passed, and the download
+ * stops there unless the book itself should be kept.
+ */
+public class EpubStreamCoverReader implements ZoteroApiClient.DownloadTap {
+
+    // Images seen before the package document says which one is the cover
+    private static final long MAX_CANDIDATE_BYTES = 8 * 1024 * 1024;
+
+    public interface CoverListener {
+        void onCoverRead(byte[] coverData);
+    }
+
+    private final boolean keepBook;
+    private final CoverListener listener;
+
+    /**
+     * @param keepBook true to download the rest of the book after the cover
+     */
+    public EpubStreamCoverReader(boolean keepBook, CoverListener listener) {
+        this.keepBook = keepBook;
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean onStream(InputStream stream) throws IOException {
+        ZipInputStream zip = new ZipInputStream(stream);
+        String opfPath = null;
+        String coverPath = null;
+        Map<String, byte[]> candidates = new HashMap<>();
+        long candidateBytes = 0;
+
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (name.equals(EpubPackageParser.CONTAINER_PATH)) {
+                opfPath = EpubPackageParser.parseRootfilePath(readEntry(zip));
+            } else if (coverPath == null && name.equals(opfPath)) {
+                coverPath = EpubPackageParser.findCoverImagePath(readEntry(zip), opfPath);
+                if (coverPath == null) {
+                    // Nothing declared; the extractor will look at the whole book
+                    return true;
+                }
+                byte[] seen = candidates.get(coverPath);
+                if (seen != null) {
+                    return onCover(seen);
+                }
+                candidates.clear();
+            } else if (coverPath != null && name.equals(coverPath)) {
+                return onCover(readEntry(zip));
+            } else if (coverPath == null && candidateBytes < MAX_CANDIDATE_BYTES && isImage(name)) {
+                byte[] data = readEntry(zip);
+                candidates.put(name, data);
+                candidateBytes += data.length;
+            }
+            // Entries that weren't read are skipped by getNextEntry, still passing through to the file
+        }
+        return true;
+    }
+
+    private boolean onCover(byte[] coverData) {
+        listener.onCoverRead(coverData);
+        return keepBook;
+    }
+
+    private static boolean isImage(String name) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        return lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg")
+                || lowerName.endsWith(".png") || lowerName.endsWith(".gif");
+    }
+
+    private static byte[] readEntry(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = zip.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
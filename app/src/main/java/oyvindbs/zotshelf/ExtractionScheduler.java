@@ -0,0 +1,223 @@
+package oyvindbs.zotshelf;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide scheduler for cover extraction, which is CPU and memory bound: one
+ * thread per spare core, so a burst of finished downloads doesn't decode hundreds of
+ * books at once. Queued work runs covers on screen first, then by the lane the
+ * download came from, then in the order it was submitted.
+ *
+ * The queue is bounded. Once it is full, the download thread handing over a file
+ * waits for room, which holds back the next download until extraction catches up.
+ * Covers on screen are let in regardless.
+ */
+public final class ExtractionScheduler {
+
+    private static final String TAG = "ExtractionScheduler";
+    private static final int MAX_THREADS = 4; // Each extraction can hold a large bitmap
+    private static final int MAX_QUEUED = 16;
+
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1;
+    private static final int ABANDONED = 2;
+
+    /**
+     * Extraction work whose outcome the caller waits for
+     */
+    public interface ExtractionStep {
+        void run() throws IOException;
+    }
+
+    private static volatile ExtractionScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore queueSlots = new Semaphore(MAX_QUEUED);
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile Set<String> visibleKeys = Collections.emptySet();
+
+    public static ExtractionScheduler getInstance() {
+        if (instance == null) {
+            synchronized (ExtractionScheduler.class) {
+                if (instance == null) {
+                    instance = new ExtractionScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private ExtractionScheduler() {
+        // Leave a core for the UI thread
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "zotshelf-extract-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        Log.d(TAG, "Extracting covers on " + threads + " threads");
+    }
+
+    /**
+     * Queue an extraction, waiting for room in the queue unless the item is on screen
+     * or this is the main thread
+     * @param itemKey Key of the attachment, matched against the visible items
+     * @param lane Lane the file was downloaded in
+     * @param cancelHandle Removes the task from the queue if cancelled before it starts
+     */
+    public void execute(String itemKey, NetworkScheduler.Lane lane, CancelHandle cancelHandle, Runnable task) {
+        ExtractionTask extraction = new ExtractionTask(itemKey, lane, sequence.getAndIncrement(), task);
+        extraction.visible = visibleKeys.contains(itemKey);
+
+        if (!extraction.visible && Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                queueSlots.acquire();
+                extraction.holdsSlot.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        cancelHandle.onCancel(() -> {
+            if (executor.remove(extraction)) {
+                extraction.releaseSlot();
+            }
+        });
+        executor.execute(extraction);
+    }
+
+    /**
+     * Queue an extraction as above and wait for it, for callers that need to know
+     * whether it worked before going on, such as deciding if a partial fetch was enough
+     * @throws IOException What the step threw, or InterruptedIOException if the handle
+     * was cancelled before the step started
+     */
+    public void executeAndWait(String itemKey, NetworkScheduler.Lane lane, CancelHandle cancelHandle,
+                               ExtractionStep step) throws IOException {
+        AtomicInteger state = new AtomicInteger(QUEUED);
+        CountDownLatch finished = new CountDownLatch(1);
+        Exception[] failure = new Exception[1];
+
+        execute(itemKey, lane, cancelHandle, () -> {
+            if (!state.compareAndSet(QUEUED, STARTED)) {
+                return;
+            }
+            try {
+                step.run();
+            } catch (IOException | RuntimeException e) {
+                failure[0] = e;
+            } finally {
+                finished.countDown();
+            }
+        });
+        // A step removed from the queue never runs, so stop waiting for it
+        cancelHandle.onCancel(() -> {
+            if (state.compareAndSet(QUEUED, ABANDONED)) {
+                finished.countDown();
+            }
+        });
+
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state.compareAndSet(QUEUED, ABANDONED);
+            throw new InterruptedIOException("Interrupted while waiting for extraction");
+        }
+        if (state.get() == ABANDONED) {
+            throw new InterruptedIOException("Cancelled before extraction");
+        }
+        if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        } else if (failure[0] != null) {
+            throw (RuntimeException) failure[0];
+        }
+    }
+
+    /**
+     * Set the items currently on screen; their queued extractions move to the front
+     */
+    public void setVisibleKeys(Set<String> keys) {
+        visibleKeys = Collections.unmodifiableSet(new HashSet<>(keys));
+
+        for (Object queued : executor.getQueue().toArray()) {
+            ExtractionTask extraction = (ExtractionTask) queued;
+            boolean visible = visibleKeys.contains(extraction.itemKey);
+            // Tasks are only reordered while out of the queue, so its ordering stays valid
+            if (visible != extraction.visible && executor.remove(extraction)) {
+                extraction.visible = visible;
+                executor.execute(extraction);
+            }
+        }
+    }
+
+    private class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
+        private final String itemKey;
+        private final NetworkScheduler.Lane lane;
+        private final long order;
+        private final Runnable task;
+        private final AtomicBoolean holdsSlot = new AtomicBoolean(false);
+        private volatile boolean visible;
+
+        ExtractionTask(String itemKey, NetworkScheduler.Lane lane, long order, Runnable task) {
+            this.itemKey = itemKey;
+            this.lane = lane;
+            this.order = order;
+            this.task = task;
+        }
+
+        void releaseSlot() {
+            if (holdsSlot.compareAndSet(true, false)) {
+                queueSlots.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            releaseSlot();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Uncaught error extracting " + itemKey, e);
+            }
+        }
+
+        @Override
+        public int compareTo(ExtractionTask other) {
+            if (visible != other.visible) {
+                return visible ? -1 : 1;
+            }
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
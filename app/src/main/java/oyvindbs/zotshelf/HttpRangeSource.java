@@ -0,0 +1,178 @@
+package oyvindbs.zotshelf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * Reads byte ranges of a remote file with HTTP Range requests, so parts of an
+ * attachment can be used without downloading all of it.
+ *
+ * Zotero answers file requests with a redirect to its storage server. The first
+ * request follows it, and later ranges go straight to the storage URL, without the
+ * API key, which is only ever sent to the Zotero API.
+ */
+public class HttpRangeSource {
+
+    /**
+     * Thrown when the server answers a range request with anything but a partial
+     * response, so the caller can fall back to a full download
+     */
+    public static class RangeNotSupportedException extends IOException {
+        RangeNotSupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Reads the body of a range response
+     */
+    private interface BodyReader<T> {
+        T read(ResponseBody body) throws IOException;
+    }
+
+    private final ZoteroApiClient.ZoteroService zoteroService;
+    private final String apiKey;
+    private final CancelHandle cancelHandle;
+    private String url;
+    private long size = -1;
+    private long bytesFetched = 0;
+
+    public HttpRangeSource(ZoteroApiClient.ZoteroService zoteroService, String url, String apiKey,
+                           CancelHandle cancelHandle) {
+        this.zoteroService = zoteroService;
+        this.url = url;
+        this.apiKey = apiKey;
+        this.cancelHandle = cancelHandle;
+    }
+
+    /**
+     * Read the last bytes of the file, which also tells us its size
+     * @return Up to length bytes; fewer if the file is shorter
+     */
+    public byte[] readTail(int length) throws IOException {
+        return fetch("bytes=-" + length, this::readBytes);
+    }
+
+    /**
+     * Read length bytes starting at offset, or fewer if the file ends first
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        if (size >= 0) {
+            length = (int) Math.min(length, size - offset);
+        }
+        if (length <= 0) {
+            return new byte[0];
+        }
+        return fetch("bytes=" + offset + "-" + (offset + length - 1), this::readBytes);
+    }
+
+    /**
+     * Copy length bytes starting at offset to a file at its current position, a buffer
+     * at a time, so large ranges never have to fit in memory
+     * @throws IOException If the range ends before length bytes, or can't be written
+     */
+    public void copy(long offset, long length, RandomAccessFile output) throws IOException {
+        if (size >= 0) {
+            length = Math.min(length, size - offset);
+        }
+        if (length <= 0) {
+            return;
+        }
+        final long expected = length;
+        fetch("bytes=" + offset + "-" + (offset + length - 1), body -> {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long remaining = expected;
+            try (InputStream input = body.byteStream()) {
+                int read;
+                while (remaining > 0
+                        && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    output.write(buffer, 0, read);
+                    remaining -= read;
+                    bytesFetched += read;
+                }
+            }
+            if (remaining > 0) {
+                throw new IOException("Range ended " + remaining + " bytes early");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return The size of the file, or -1 before the first range has been read
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of bytes transferred so far
+     */
+    public long getBytesFetched() {
+        return bytesFetched;
+    }
+
+    private <T> T fetch(String range, BodyReader<T> reader) throws IOException {
+        // A null header is left out
+        Call<ResponseBody> call = zoteroService.downloadFile(url,
+                ApiKeyScopeInterceptor.isApiUrl(url) ? apiKey : null, range);
+        cancelHandle.track(call);
+        try {
+            Response<ResponseBody> response = call.execute();
+            ResponseBody body = response.body();
+            if (response.code() != 206 || body == null) {
+                if (body != null) {
+                    // Don't read a whole file we didn't ask for
+                    body.close();
+                }
+                throw new RangeNotSupportedException("Range request answered with HTTP " + response.code());
+            }
+
+            long total = parseTotalSize(response.headers().get("Content-Range"));
+            if (total >= 0) {
+                size = total;
+            }
+            url = response.raw().request().url().toString();
+
+            try {
+                return reader.read(body);
+            } finally {
+                body.close();
+            }
+        } finally {
+            cancelHandle.untrack(call);
+        }
+    }
+
+    private byte[] readBytes(ResponseBody body) throws IOException {
+        byte[] bytes = body.bytes();
+        bytesFetched += bytes.length;
+        return bytes;
+    }
+
+    /**
+     * Get the complete size from a Content-Range header such as "bytes 0-99/1234"
+     * @return The size, or -1 if the header is missing or the size unknown
+     */
+    private static long parseTotalSize(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package oyvindbs.zotshelf;
+
+import java.util.Set;
+
+/**
+ * Summary of the changes to the ebook attachments in a library or collection since a
+ * known library version. The changed items themselves are stored page by page while
+ * they are streamed, so only their counts are kept here.
+ */
+public class LibraryDelta {
+
+    private final long libraryVersion;
+    private final int changedAttachmentCount;
+    private final int changedParentCount;
+    private final Set<String> currentKeys; // Every attachment key still in scope, null when unchanged
+
+    public LibraryDelta(long libraryVersion, int changedAttachmentCount,
+                        int changedParentCount, Set<String> currentKeys) {
+        this.libraryVersion = libraryVersion;
+        this.changedAttachmentCount = changedAttachmentCount;
+        this.changedParentCount = changedParentCount;
+        this.currentKeys = currentKeys;
+    }
+
+    public static LibraryDelta unchanged(long libraryVersion) {
+        return new LibraryDelta(libraryVersion, 0, 0, null);
+    }
+
+    public long getLibraryVersion() {
+        return libraryVersion;
+    }
+
+    public int getChangedAttachmentCount() {
+        return changedAttachmentCount;
+    }
+
+    public int getChangedParentCount() {
+        return changedParentCount;
+    }
+
+    public Set<String> getCurrentKeys() {
+        return currentKeys;
+    }
+
+    public boolean isUnchanged() {
+        return currentKeys == null;
+    }
+}
@@ -0,0 +1,179 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import oyvindbs.zotshelf.database.EpubCoverEntity;
+import oyvindbs.zotshelf.database.EpubCoverRepository;
+
+/**
+ * Keeps the cached covers in step with Zotero using library versions.
+ * Each sync asks only for what changed since the version stored for the
+ * library or collection, and stores the changes page by page as they arrive.
+ */
+public class LibrarySyncEngine {
+
+    private static final String TAG = "LibrarySyncEngine";
+
+    private static final SingleFlight<LibraryDelta> SYNCS_IN_FLIGHT = new SingleFlight<>();
+    private static final Map<String, List<ProgressListener>> PROGRESS_LISTENERS = new HashMap<>();
+    // Shared by every engine, so recreated fragments and widget factories don't each leave a thread behind
+    private static final Executor SYNC_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final ZoteroApiClient zoteroApiClient;
+    private final EpubCoverRepository coverRepository;
+
+    public interface SyncCallback {
+        void onSyncComplete(LibraryDelta delta);
+        void onError(String errorMessage);
+    }
+
+    public interface ProgressListener {
+        /** Entries stored from one page of changes, called on a network thread */
+        void onEntriesStored(List<EpubCoverEntity> entries);
+    }
+
+    public LibrarySyncEngine(Context context, ZoteroApiClient zoteroApiClient) {
+        this.zoteroApiClient = zoteroApiClient;
+        this.coverRepository = new EpubCoverRepository(context);
+    }
+
+    /**
+     * Sync the library (empty collection key) or a single collection into the cache.
+     * The callback runs on a background thread once the delta has been stored.
+     * @return A handle that detaches this caller; the sync stops once no caller is left
+     */
+    public CancelHandle sync(String userId, String apiKey, String collectionKey, SyncCallback callback) {
+        return sync(userId, apiKey, collectionKey, null, callback);
+    }
+
+    /**
+     * Sync as above, reporting each page of stored entries to the progress listener
+     * as it lands so they can be shown before the whole sync has finished
+     */
+    public CancelHandle sync(String userId, String apiKey, String collectionKey, ProgressListener progressListener,
+                             SyncCallback callback) {
+        String scope = EpubCoverRepository.getSyncScope(userId, collectionKey);
+        if (progressListener != null) {
+            addProgressListener(scope, progressListener);
+        }
+
+        // A tab and the widget syncing the same scope share one sync
+        CancelHandle callerHandle = SYNCS_IN_FLIGHT.run(scope, new ZoteroApiClient.ZoteroCallback<LibraryDelta>() {
+            @Override
+            public void onSuccess(LibraryDelta delta) {
+                removeProgressListener(scope, progressListener);
+                callback.onSyncComplete(delta);
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                removeProgressListener(scope, progressListener);
+                callback.onError(errorMessage);
+            }
+        }, (done, cancelHandle) -> SYNC_EXECUTOR.execute(() -> runSync(userId, apiKey, collectionKey, scope, cancelHandle, done)));
+
+        callerHandle.onCancel(() -> removeProgressListener(scope, progressListener));
+        return callerHandle;
+    }
+
+    private static void addProgressListener(String scope, ProgressListener listener) {
+        synchronized (PROGRESS_LISTENERS) {
+            List<ProgressListener> listeners = PROGRESS_LISTENERS.get(scope);
+            if (listeners == null) {
+                listeners = new ArrayList<>();
+                PROGRESS_LISTENERS.put(scope, listeners);
+            }
+            listeners.add(listener);
+        }
+    }
+
+    private static void removeProgressListener(String scope, ProgressListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (PROGRESS_LISTENERS) {
+            List<ProgressListener> listeners = PROGRESS_LISTENERS.get(scope);
+            if (listeners != null) {
+                listeners.remove(listener);
+                if (listeners.isEmpty()) {
+                    PROGRESS_LISTENERS.remove(scope);
+                }
+            }
+        }
+    }
+
+    private static void notifyEntriesStored(String scope, List<EpubCoverEntity> entries) {
+        List<ProgressListener> listeners;
+        synchronized (PROGRESS_LISTENERS) {
+            List<ProgressListener> registered = PROGRESS_LISTENERS.get(scope);
+            if (registered == null) {
+                return;
+            }
+            listeners = new ArrayList<>(registered);
+        }
+        for (ProgressListener listener : listeners) {
+            listener.onEntriesStored(entries);
+        }
+    }
+
+    private void runSync(String userId, String apiKey, String collectionKey, String scope,
+                         CancelHandle cancelHandle, ZoteroApiClient.ZoteroCallback<LibraryDelta> callback) {
+        if (cancelHandle.isCancelled()) {
+            Log.d(TAG, "Skipped cancelled sync for " + scope);
+            return;
+        }
+        long sinceVersion = coverRepository.getLibraryVersionSync(scope);
+
+        ZoteroApiClient.ItemChangeListener changeListener = new ZoteroApiClient.ItemChangeListener() {
+            @Override
+            public void onChangedAttachments(List<ZoteroItem> attachments) {
+                notifyEntriesStored(scope, coverRepository.saveChangedAttachmentsSync(collectionKey, attachments));
+            }
+
+            @Override
+            public void onChangedParents(List<ZoteroItem> parents) {
+                coverRepository.saveChangedParentsSync(parents);
+            }
+
+            @Override
+            public List<String> findUncachedKeys(Set<String> currentKeys) {
+                return coverRepository.claimKeysInScopeSync(collectionKey, currentKeys);
+            }
+        };
+
+        zoteroApiClient.getEbookItemChanges(userId, apiKey, collectionKey, sinceVersion, cancelHandle, changeListener,
+                new ZoteroApiClient.ZoteroCallback<LibraryDelta>() {
+            @Override
+            public void onSuccess(LibraryDelta delta) {
+                // Finish the sync and run the callback here rather than on a network thread
+                SYNC_EXECUTOR.execute(() -> {
+                    if (!delta.isUnchanged()) {
+                        try {
+                            coverRepository.commitSyncStateSync(scope, collectionKey, delta);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error applying library delta for " + scope, e);
+                            callback.onError("Failed to update cache: " + e.getMessage());
+                            return;
+                        }
+                    }
+                    callback.onSuccess(delta);
+                });
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                Log.e(TAG, "Sync failed for " + scope + ": " + errorMessage);
+                callback.onError(errorMessage);
+            }
+        });
+    }
+}
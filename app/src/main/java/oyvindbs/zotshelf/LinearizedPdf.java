@@ -0,0 +1,93 @@
+package oyvindbs.zotshelf;
+
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The linearization parameters of a "fast web view" PDF. Such a file starts with a
+ * dictionary saying where the objects of the first page end (/E) and where the main
+ * cross-reference table is (/T), so the first page can be rendered from the head
+ * and tail of the file without the pages in between.
+ */
+public class LinearizedPdf {
+
+    // The linearization dictionary must be contained in the first 1024 bytes
+    public static final int HEADER_PROBE_SIZE = 1024;
+
+    private static final Pattern LINEARIZED = Pattern.compile("<<\\s*/Linearized\\s+[\\d.]+(.*?)>>", Pattern.DOTALL);
+
+    private final long fileLength;
+    private final long firstPageEnd;
+    private final long mainXrefOffset;
+
+    private LinearizedPdf(long fileLength, long firstPageEnd, long mainXrefOffset) {
+        this.fileLength = fileLength;
+        this.firstPageEnd = firstPageEnd;
+        this.mainXrefOffset = mainXrefOffset;
+    }
+
+    /**
+     * Read the linearization dictionary from the start of a PDF
+     * @return The parameters, or null if the file is not linearized
+     */
+    public static LinearizedPdf parse(byte[] head) {
+        String text;
+        try {
+            text = new String(head, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        if (!text.startsWith("%PDF-")) {
+            return null;
+        }
+
+        Matcher dictionary = LINEARIZED.matcher(text);
+        if (!dictionary.find()) {
+            return null;
+        }
+        String entries = dictionary.group(1);
+        long fileLength = readNumber(entries, "L");
+        long firstPageEnd = readNumber(entries, "E");
+        long mainXrefOffset = readNumber(entries, "T");
+        if (fileLength <= 0 || firstPageEnd <= 0 || mainXrefOffset <= 0
+                || firstPageEnd > fileLength || mainXrefOffset > fileLength) {
+            return null;
+        }
+        return new LinearizedPdf(fileLength, firstPageEnd, mainXrefOffset);
+    }
+
+    /**
+     * @return The file length the PDF was linearized for. A file of any other length
+     * has been updated since, and the other parameters no longer hold.
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return The offset just past the last object of the first page
+     */
+    public long getFirstPageEnd() {
+        return firstPageEnd;
+    }
+
+    /**
+     * @return The offset of the main cross-reference table near the end of the file
+     */
+    public long getMainXrefOffset() {
+        return mainXrefOffset;
+    }
+
+    private static long readNumber(String entries, String key) {
+        Matcher matcher = Pattern.compile("/" + key + "\\s+(\\d+)").matcher(entries);
+        if (!matcher.find()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
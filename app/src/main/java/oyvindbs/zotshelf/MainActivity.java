@@ -66,6 +66,11 @@ public class MainActivity extends AppCompatActivity {
             return windowInsets;
         });
 
+        // Carry on with cover jobs an earlier run didn't finish
+        CoverJobQueue.getInstance(this).resume();
+        // Bring the cache back within its limit, which older versions never set
+        StorageBudget.getInstance(this).trimAsync();
+
         // Setup tabs regardless of credentials (fragments will handle empty state)
         setupTabs();
         setupFab();
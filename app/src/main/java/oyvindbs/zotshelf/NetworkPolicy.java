@@ -0,0 +1,150 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decides what the current network may be used for. Metadata syncs run on any
+ * connection, but ebook downloads and cover fetches wait for an unmetered one, so
+ * a library isn't pulled in over mobile data just to make covers.
+ *
+ * The link is reclassified whenever the default network changes, and listeners are
+ * told so deferred work can start as soon as Wi-Fi is back.
+ */
+public final class NetworkPolicy {
+
+    private static final String TAG = "NetworkPolicy";
+
+    public enum LinkType {
+        NONE,
+        UNMETERED,
+        METERED,
+        ROAMING
+    }
+
+    public interface LinkListener {
+        void onLinkChanged(LinkType linkType);
+    }
+
+    private static volatile NetworkPolicy instance;
+
+    private final ConnectivityManager connectivityManager;
+    private final List<LinkListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile LinkType linkType;
+
+    public static NetworkPolicy getInstance(Context context) {
+        if (instance == null) {
+            synchronized (NetworkPolicy.class) {
+                if (instance == null) {
+                    instance = new NetworkPolicy(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private NetworkPolicy(Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        linkType = classify();
+
+        if (connectivityManager == null) {
+            return;
+        }
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                update();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                update();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                update();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            connectivityManager.registerDefaultNetworkCallback(callback);
+        } else {
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), callback);
+        }
+    }
+
+    public void addListener(LinkListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LinkListener listener) {
+        listeners.remove(listener);
+    }
+
+    public LinkType getLinkType() {
+        return linkType;
+    }
+
+    /**
+     * @return true if ebooks may be downloaded for their covers now
+     */
+    public boolean allowsBinaryDownloads() {
+        return linkType == LinkType.UNMETERED;
+    }
+
+    /**
+     * @return true if the library metadata may be synced now
+     */
+    public boolean allowsMetadataSync() {
+        return linkType != LinkType.NONE;
+    }
+
+    private void update() {
+        LinkType current = classify();
+        if (current == linkType) {
+            return;
+        }
+        Log.d(TAG, "Network changed from " + linkType + " to " + current);
+        linkType = current;
+        for (LinkListener listener : listeners) {
+            listener.onLinkChanged(current);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private LinkType classify() {
+        if (connectivityManager == null) {
+            return LinkType.NONE;
+        }
+        Network network = connectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = network != null
+                ? connectivityManager.getNetworkCapabilities(network) : null;
+        if (capabilities == null || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
+            return LinkType.NONE;
+        }
+
+        boolean roaming;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            roaming = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+        } else {
+            NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
+            roaming = networkInfo != null && networkInfo.isRoaming();
+        }
+        if (roaming) {
+            return LinkType.ROAMING;
+        }
+        return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)
+                ? LinkType.UNMETERED : LinkType.METERED;
+    }
+}
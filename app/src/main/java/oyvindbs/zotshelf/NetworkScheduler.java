@@ -0,0 +1,203 @@
+package oyvindbs.zotshelf;
+
+import android.util.Log;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide scheduler for network work. A fixed number of threads is shared by
+ * every ZoteroApiClient, and queued tasks run by lane: metadata requests first,
+ * then downloads for items on screen, then background prefetching.
+ * Within a lane tasks run in the order they were submitted.
+ *
+ * Download tasks stream whole files and can hold a thread for minutes, so they may only
+ * take some of the threads. The rest stay free for metadata, which a newly opened tab
+ * is waiting on.
+ */
+public final class NetworkScheduler {
+
+    private static final String TAG = "NetworkScheduler";
+    static final int MAX_CONCURRENT_REQUESTS = 6;
+    private static final int RESERVED_METADATA_THREADS = 2;
+    private static final int MAX_CONCURRENT_DOWNLOADS = MAX_CONCURRENT_REQUESTS - RESERVED_METADATA_THREADS;
+    private static final int METRICS_LOG_INTERVAL = 25; // Log queue depths every this many queued tasks
+
+    public enum Lane {
+        METADATA,
+        VISIBLE_DOWNLOAD,
+        PREFETCH
+    }
+
+    private static volatile NetworkScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger[] queued = new AtomicInteger[Lane.values().length];
+    private final AtomicInteger[] running = new AtomicInteger[Lane.values().length];
+    private final AtomicLong[] completed = new AtomicLong[Lane.values().length];
+    // Download tasks that reached a thread while every download slot was taken
+    private final PriorityQueue<LaneTask> parkedDownloads = new PriorityQueue<>();
+    private int runningDownloads = 0; // Guarded by parkedDownloads
+
+    public static NetworkScheduler getInstance() {
+        if (instance == null) {
+            synchronized (NetworkScheduler.class) {
+                if (instance == null) {
+                    instance = new NetworkScheduler();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private NetworkScheduler() {
+        for (int i = 0; i < queued.length; i++) {
+            queued[i] = new AtomicInteger();
+            running[i] = new AtomicInteger();
+            completed[i] = new AtomicLong();
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "zotshelf-net-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        executor = new ThreadPoolExecutor(MAX_CONCURRENT_REQUESTS, MAX_CONCURRENT_REQUESTS,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a task in the given lane
+     */
+    public void execute(Lane lane, Runnable task) {
+        int depth = queued[lane.ordinal()].incrementAndGet();
+        if (depth % METRICS_LOG_INTERVAL == 0) {
+            Log.d(TAG, getMetricsSummary());
+        }
+        executor.execute(new LaneTask(lane, sequence.getAndIncrement(), task));
+    }
+
+    /**
+     * Get an executor that queues everything in the given lane
+     */
+    public Executor getExecutor(final Lane lane) {
+        return task -> execute(lane, task);
+    }
+
+    /**
+     * Number of tasks waiting to start in a lane
+     */
+    public int getQueueDepth(Lane lane) {
+        return queued[lane.ordinal()].get();
+    }
+
+    /**
+     * Number of tasks currently running in a lane
+     */
+    public int getRunningCount(Lane lane) {
+        return running[lane.ordinal()].get();
+    }
+
+    /**
+     * Number of tasks finished in a lane since the process started
+     */
+    public long getCompletedCount(Lane lane) {
+        return completed[lane.ordinal()].get();
+    }
+
+    public String getMetricsSummary() {
+        StringBuilder summary = new StringBuilder("Queue depths:");
+        for (Lane lane : Lane.values()) {
+            summary.append(' ').append(lane.name().toLowerCase())
+                    .append('=').append(getQueueDepth(lane))
+                    .append(" (running ").append(getRunningCount(lane))
+                    .append(", done ").append(getCompletedCount(lane)).append(')');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Take a download slot for a task, or park the task until one is free
+     * @return false if the task was parked
+     */
+    private boolean startDownload(LaneTask task) {
+        synchronized (parkedDownloads) {
+            if (runningDownloads < MAX_CONCURRENT_DOWNLOADS) {
+                runningDownloads++;
+                return true;
+            }
+            parkedDownloads.add(task);
+            return false;
+        }
+    }
+
+    /**
+     * Free a download slot, handing the most urgent parked download back to the pool
+     */
+    private void finishDownload() {
+        LaneTask next;
+        synchronized (parkedDownloads) {
+            runningDownloads--;
+            next = parkedDownloads.poll();
+        }
+        if (next != null) {
+            executor.execute(next);
+        }
+    }
+
+    private class LaneTask implements Runnable, Comparable<LaneTask> {
+        private final Lane lane;
+        private final long order;
+        private final Runnable task;
+
+        LaneTask(Lane lane, long order, Runnable task) {
+            this.lane = lane;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (lane != Lane.METADATA && !startDownload(this)) {
+                // Parked; runs once a download finishes, and this thread moves on
+                return;
+            }
+            int index = lane.ordinal();
+            queued[index].decrementAndGet();
+            running[index].incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Uncaught error in " + lane + " task", e);
+            } finally {
+                running[index].decrementAndGet();
+                completed[index].incrementAndGet();
+                if (lane != Lane.METADATA) {
+                    finishDownload();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(LaneTask other) {
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package oyvindbs.zotshelf;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Client-side rate governor for api.zotero.org.
+ *
+ * Honors the Backoff and Retry-After headers Zotero sends when it is under load:
+ * new requests wait until the server asked us to resume, and 429/503 answers are
+ * retried with jittered delays instead of failing the load. The number of requests
+ * in flight adapts like TCP congestion control: it grows by one after a full window
+ * of successes and halves whenever the server throttles us.
+ */
+public class RateGovernorInterceptor implements Interceptor {
+
+    private static final String TAG = "RateGovernor";
+    private static final String API_HOST = "api.zotero.org";
+    private static final int MAX_RETRIES = 4;
+    private static final long BASE_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 1000;
+    private static final int MIN_CONCURRENCY = 1;
+    // More could never be in flight, as every API request runs on a scheduler thread
+    private static final int MAX_CONCURRENCY = NetworkScheduler.MAX_CONCURRENT_REQUESTS;
+    // Waiting threads check this often whether their call was cancelled
+    private static final long CANCEL_CHECK_INTERVAL_MS = 250;
+
+    private final Object lock = new Object();
+    private final Random random = new Random();
+    private double concurrencyLimit = 4;
+    private int inFlight = 0;
+    private long resumeAt = 0; // Wall clock time before which no new request starts
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!API_HOST.equals(request.url().host())) {
+            return chain.proceed(request);
+        }
+
+        int attempt = 0;
+        while (true) {
+            acquire(chain.call());
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } finally {
+                release();
+            }
+
+            long backoffMs = parseSeconds(response.header("Backoff"));
+            if (backoffMs > 0) {
+                pauseFor(backoffMs);
+            }
+
+            int code = response.code();
+            if (code != 429 && code != 503) {
+                if (response.isSuccessful() || code == 304) {
+                    onSuccess();
+                }
+                return response;
+            }
+
+            onThrottled();
+            if (attempt >= MAX_RETRIES) {
+                Log.w(TAG, "Giving up after " + attempt + " retries: HTTP " + code + " " + request.url().encodedPath());
+                return response;
+            }
+
+            long retryAfterMs = parseSeconds(response.header("Retry-After"));
+            long delayMs = retryAfterMs > 0 ? retryAfterMs : Math.min(MAX_RETRY_DELAY_MS, BASE_RETRY_DELAY_MS << attempt);
+            delayMs += (long) (random.nextDouble() * delayMs * 0.5);
+            pauseFor(delayMs);
+
+            Log.d(TAG, "HTTP " + code + ", retrying in " + delayMs + " ms (attempt " + (attempt + 1) + ")");
+            response.close();
+            attempt++;
+        }
+    }
+
+    /**
+     * Wait until the server allows requests again and a slot under the current limit is
+     * free. Waits a slice at a time, so a cancelled call stops waiting soon after.
+     * @throws IOException If the call is cancelled while waiting
+     */
+    private void acquire(Call call) throws IOException {
+        synchronized (lock) {
+            try {
+                while (true) {
+                    if (call.isCanceled()) {
+                        throw new IOException("Canceled");
+                    }
+                    long wait = resumeAt - System.currentTimeMillis();
+                    if (wait > 0) {
+                        lock.wait(Math.min(wait, CANCEL_CHECK_INTERVAL_MS));
+                    } else if (inFlight >= (int) concurrencyLimit) {
+                        lock.wait(CANCEL_CHECK_INTERVAL_MS);
+                    } else {
+                        inFlight++;
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rate limit");
+            }
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            inFlight--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Additive increase: one more concurrent request per window of successes
+     */
+    private void onSuccess() {
+        synchronized (lock) {
+            if (concurrencyLimit < MAX_CONCURRENCY) {
+                concurrencyLimit = Math.min(MAX_CONCURRENCY, concurrencyLimit + 1.0 / concurrencyLimit);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Multiplicative decrease when the server says we are going too fast
+     */
+    private void onThrottled() {
+        synchronized (lock) {
+            concurrencyLimit = Math.max(MIN_CONCURRENCY, concurrencyLimit / 2);
+            Log.d(TAG, "Throttled, concurrency limit now " + (int) concurrencyLimit);
+        }
+    }
+
+    private void pauseFor(long delayMs) {
+        synchronized (lock) {
+            resumeAt = Math.max(resumeAt, System.currentTimeMillis() + delayMs);
+        }
+    }
+
+    /**
+     * Parse a header given in seconds, as Zotero sends Backoff and Retry-After
+     * @return The delay in milliseconds, or 0 if the header is missing or invalid
+     */
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
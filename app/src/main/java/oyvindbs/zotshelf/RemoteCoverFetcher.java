@@ -0,0 +1,375 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import oyvindbs.zotshelf.database.AppDatabase;
+import oyvindbs.zotshelf.database.EbookFileDao;
+import oyvindbs.zotshelf.database.EbookFileEntity;
+
+/**
+ * Gets the cover of an attachment with as little data as possible.
+ *
+ * For EPUBs, only the ZIP central directory, container.xml, the package document and
+ * the cover image are fetched with HTTP ranges, usually a few percent of the book.
+ * For linearized PDFs, only the first page and the cross-reference table at the end
+ * are fetched, and rendered from a sparse file of the original length.
+ * Files the server won't serve in ranges, and books whose cover can't be found that
+ * way, are downloaded and handed to {@link CoverExtractor} as before. EPUB downloads
+ * are read as they stream, so their cover shows up without waiting for the rest of
+ * the book, and with the "covers only" storage setting the download stops right there.
+ */
+public class RemoteCoverFetcher {
+
+    private static final String TAG = "RemoteCoverFetcher";
+    // Past this share of the file, a range fetch saves too little to be worth it
+    private static final double MAX_PARTIAL_FRACTION = 0.5;
+    // Past this, a first page is large enough that a plain download is just as good
+    private static final long MAX_PARTIAL_BYTES = 16 * 1024 * 1024;
+
+    // Shared by every fetcher, so a tab and the widget don't fetch the same cover twice
+    private static final SingleFlight<String> COVERS_IN_FLIGHT = new SingleFlight<>();
+
+    public interface CoverCallback {
+        void onCoverFetched(ZoteroItem item, String coverPath);
+        void onError(ZoteroItem item, String errorMessage);
+    }
+
+    /**
+     * Told when a fetch has downloaded the ebook and starts extracting its cover
+     */
+    public interface StageListener {
+        void onExtracting(ZoteroItem item);
+    }
+
+    /**
+     * Passes on the first result only, as a streamed cover can arrive before the
+     * download it came from has finished
+     */
+    private static class FirstResult implements ZoteroApiClient.ZoteroCallback<String> {
+        private final ZoteroApiClient.ZoteroCallback<String> callback;
+        private final AtomicBoolean delivered = new AtomicBoolean(false);
+
+        FirstResult(ZoteroApiClient.ZoteroCallback<String> callback) {
+            this.callback = callback;
+        }
+
+        boolean isDelivered() {
+            return delivered.get();
+        }
+
+        @Override
+        public void onSuccess(String coverPath) {
+            if (delivered.compareAndSet(false, true)) {
+                callback.onSuccess(coverPath);
+            }
+        }
+
+        @Override
+        public void onError(String errorMessage) {
+            if (delivered.compareAndSet(false, true)) {
+                callback.onError(errorMessage);
+            }
+        }
+    }
+
+    private final Context context;
+    private final ZoteroApiClient zoteroApiClient;
+    private final ZoteroApiClient.ZoteroService zoteroService;
+    private final EbookFileDao ebookFiles;
+
+    public RemoteCoverFetcher(Context context, ZoteroApiClient zoteroApiClient) {
+        this.context = context;
+        this.zoteroApiClient = zoteroApiClient;
+        this.zoteroService = ZoteroHttpStack.getInstance(context).getZoteroService();
+        this.ebookFiles = AppDatabase.getInstance(context).ebookFileDao();
+    }
+
+    /**
+     * Get the cover of an attachment, from the covers already extracted, the ebook if it
+     * was downloaded before, or the server
+     * @param lane Scheduler lane for the requests
+     * @return A handle that detaches this caller; the fetch stops once no caller is left
+     */
+    public CancelHandle fetchCover(ZoteroItem item, NetworkScheduler.Lane lane, CoverCallback callback) {
+        return fetchCover(item, lane, null, callback);
+    }
+
+    /**
+     * Get the cover of an attachment, reporting when it moves on to extraction
+     * @param stages Told about the stages of the fetch, if this call starts it rather
+     *               than joining one in flight; may be null
+     */
+    public CancelHandle fetchCover(ZoteroItem item, NetworkScheduler.Lane lane, StageListener stages,
+                                   CoverCallback callback) {
+        ZoteroApiClient.ZoteroCallback<String> coverCallback = new ZoteroApiClient.ZoteroCallback<String>() {
+            @Override
+            public void onSuccess(String coverPath) {
+                callback.onCoverFetched(item, coverPath);
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                callback.onError(item, errorMessage);
+            }
+        };
+
+        return COVERS_IN_FLIGHT.run(item.getKey(), coverCallback, (done, cancelHandle) ->
+                NetworkScheduler.getInstance().execute(lane, () -> {
+            try {
+                runFetch(item, lane, stages, done, cancelHandle);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // Anything but a result would leave the flight registered for good,
+                // and every later fetch of the item would wait on it
+                Log.e(TAG, "Cover fetch of " + item.getKey() + " failed", e);
+                done.onError("Cover fetch failed: " + e);
+            }
+        }));
+    }
+
+    /**
+     * Fetch a cover in its lane, reporting the result through done
+     */
+    private void runFetch(ZoteroItem item, NetworkScheduler.Lane lane, StageListener stages,
+                          ZoteroApiClient.ZoteroCallback<String> done, CancelHandle cancelHandle) {
+        if (cancelHandle.isCancelled()) {
+            return;
+        }
+
+        File ebookFile = zoteroApiClient.getEbookFile(item);
+        if (ebookFile == null) {
+            done.onError("Unsupported file type: " + item.getMimeType());
+            return;
+        }
+
+        File coverFile = CoverExtractor.getCoverFile(ebookFile);
+        if (coverFile.exists()) {
+            // Covers from before files were recorded are kept, and recorded as the
+            // current version from now on
+            EbookFileEntity record = ebookFiles.getByKey(item.getKey());
+            if (record == null || record.matches(item.getMd5(), item.getMtime())) {
+                if (record == null && !ebookFile.exists()) {
+                    recordCoverOnly(item);
+                }
+                CoverExtractor.touchFile(coverFile);
+                done.onSuccess(coverFile.getAbsolutePath());
+                return;
+            }
+            Log.d(TAG, "Cover of " + item.getKey() + " is from an older file, fetching it again");
+            CoverThumbnails.delete(coverFile);
+        }
+
+        if (!ebookFile.exists()) {
+            try {
+                boolean fetched = ebookFile.getName().endsWith(".epub")
+                        ? fetchEpubCover(item, lane, coverFile, cancelHandle)
+                        : fetchPdfCover(item, lane, coverFile, cancelHandle);
+                if (fetched) {
+                    recordCoverOnly(item);
+                    done.onSuccess(coverFile.getAbsolutePath());
+                    return;
+                }
+            } catch (HttpRangeSource.RangeNotSupportedException e) {
+                Log.d(TAG, "No range support for " + item.getKey() + " (" + e.getMessage() + "), downloading it");
+            } catch (IOException e) {
+                if (cancelHandle.isCancelled()) {
+                    return;
+                }
+                Log.w(TAG, "Partial cover fetch failed for " + item.getKey() + ", downloading it", e);
+            }
+        }
+
+        boolean coversOnly = new UserPreferences(context).getCoversOnly();
+        FirstResult result = new FirstResult(done);
+        ZoteroApiClient.DownloadTap tap = null;
+        if (ebookFile.getName().endsWith(".epub")) {
+            tap = new EpubStreamCoverReader(!coversOnly, coverData -> {
+                try {
+                    writeCover(item, lane, cancelHandle, coverData, coverFile);
+                    // The download may stop here; if it completes, its record replaces this one
+                    recordCoverOnly(item);
+                    Log.d(TAG, "Read cover of " + item.getKey() + " from the download stream");
+                    result.onSuccess(coverFile.getAbsolutePath());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save streamed cover of " + item.getKey(), e);
+                }
+            });
+        }
+        downloadAndExtract(item, lane, tap, coversOnly, stages, cancelHandle, result);
+    }
+
+    /**
+     * Read the cover of a remote EPUB through HTTP ranges
+     * @return false if the book doesn't declare a cover image this way
+     */
+    private boolean fetchEpubCover(ZoteroItem item, NetworkScheduler.Lane lane, File coverFile,
+                                   CancelHandle cancelHandle) throws IOException {
+        if (item.getLinks() == null || item.getLinks().getEnclosure() == null) {
+            return false;
+        }
+        String apiKey = new UserPreferences(context).getZoteroApiKey();
+        HttpRangeSource source = new HttpRangeSource(zoteroService,
+                item.getLinks().getEnclosure().getHref(), apiKey, cancelHandle);
+
+        RemoteZipFile zip = RemoteZipFile.open(source);
+        RemoteZipFile.Entry container = zip.getEntry(EpubPackageParser.CONTAINER_PATH);
+        if (container == null) {
+            return false;
+        }
+        String opfPath = EpubPackageParser.parseRootfilePath(zip.readEntry(container));
+        RemoteZipFile.Entry opf = opfPath != null ? zip.getEntry(opfPath) : null;
+        if (opf == null) {
+            return false;
+        }
+        String coverPath = EpubPackageParser.findCoverImagePath(zip.readEntry(opf), opfPath);
+        RemoteZipFile.Entry cover = coverPath != null ? zip.getEntry(coverPath) : null;
+        if (cover == null) {
+            return false;
+        }
+
+        writeCover(item, lane, cancelHandle, zip.readEntry(cover), coverFile);
+        Log.d(TAG, "Fetched cover of " + item.getKey() + " with " + source.getBytesFetched() +
+                " of " + source.getSize() + " bytes");
+        return true;
+    }
+
+    /**
+     * Render the first page of a remote linearized PDF from the ranges that hold it
+     * @return false if the PDF isn't linearized, or the first page couldn't be rendered
+     * from the ranges alone
+     */
+    private boolean fetchPdfCover(ZoteroItem item, NetworkScheduler.Lane lane, File coverFile,
+                                  CancelHandle cancelHandle) throws IOException {
+        if (item.getLinks() == null || item.getLinks().getEnclosure() == null) {
+            return false;
+        }
+        String apiKey = new UserPreferences(context).getZoteroApiKey();
+        HttpRangeSource source = new HttpRangeSource(zoteroService,
+                item.getLinks().getEnclosure().getHref(), apiKey, cancelHandle);
+
+        byte[] head = source.read(0, LinearizedPdf.HEADER_PROBE_SIZE);
+        LinearizedPdf linearized = LinearizedPdf.parse(head);
+        long size = source.getSize();
+        if (linearized == null || linearized.getFileLength() != size) {
+            // Not linearized, or updated incrementally since, which moves things around
+            return false;
+        }
+
+        long firstPageEnd = linearized.getFirstPageEnd();
+        long tailStart = Math.max(linearized.getMainXrefOffset(), firstPageEnd);
+        long partialBytes = firstPageEnd + (size - tailStart);
+        if (partialBytes > size * MAX_PARTIAL_FRACTION || partialBytes > MAX_PARTIAL_BYTES) {
+            return false;
+        }
+
+        // A file of the original length with only the fetched ranges filled in, so every
+        // offset in the cross-reference tables still points at the right place
+        File sparseFile = new File(context.getCacheDir(), item.getKey() + ".first-page.pdf");
+        try {
+            try (RandomAccessFile output = new RandomAccessFile(sparseFile, "rw")) {
+                output.setLength(size);
+                output.write(head);
+                if (firstPageEnd > head.length) {
+                    source.copy(head.length, firstPageEnd - head.length, output);
+                }
+                output.seek(tailStart);
+                source.copy(tailStart, size - tailStart, output);
+            }
+
+            try {
+                ExtractionScheduler.getInstance().executeAndWait(item.getKey(), lane, cancelHandle,
+                        () -> CoverExtractor.renderPdfCover(sparseFile, coverFile));
+            } catch (IOException | SecurityException e) {
+                if (cancelHandle.isCancelled()) {
+                    throw e;
+                }
+                Log.d(TAG, "First page of " + item.getKey() + " needs more than the linearized ranges: " + e.getMessage());
+                CoverThumbnails.delete(coverFile);
+                return false;
+            }
+        } finally {
+            sparseFile.delete();
+        }
+
+        Log.d(TAG, "Rendered cover of " + item.getKey() + " from " + source.getBytesFetched() +
+                " of " + size + " bytes");
+        return true;
+    }
+
+    /**
+     * Download the ebook and extract its cover, unless the tap already got it from the stream
+     * @param coversOnly true to delete the ebook once its cover is extracted
+     */
+    private void downloadAndExtract(ZoteroItem item, NetworkScheduler.Lane lane, ZoteroApiClient.DownloadTap tap,
+                                    boolean coversOnly, StageListener stages, CancelHandle cancelHandle,
+                                    FirstResult done) {
+        cancelHandle.add(zoteroApiClient.downloadEbook(item, lane, tap, new ZoteroApiClient.FileCallback() {
+            @Override
+            public void onFileDownloaded(ZoteroItem item, String filePath) {
+                if (done.isDelivered()) {
+                    discardIfCoversOnly(item, filePath, coversOnly);
+                    return;
+                }
+                if (stages != null) {
+                    stages.onExtracting(item);
+                }
+                cancelHandle.add(CoverExtractor.extractCover(filePath, lane, new CoverExtractor.CoverCallback() {
+                    @Override
+                    public void onCoverExtracted(String coverPath) {
+                        discardIfCoversOnly(item, filePath, coversOnly);
+                        done.onSuccess(coverPath);
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        discardIfCoversOnly(item, filePath, coversOnly);
+                        done.onError(errorMessage);
+                    }
+                }));
+            }
+
+            @Override
+            public void onError(ZoteroItem item, String errorMessage) {
+                done.onError(errorMessage);
+            }
+        }));
+    }
+
+    private void discardIfCoversOnly(ZoteroItem item, String filePath, boolean coversOnly) {
+        if (coversOnly && new File(filePath).delete()) {
+            Log.d(TAG, "Discarded " + filePath + " after reading its cover");
+            // Keep the record for the cover that is left
+            EbookFileEntity record = ebookFiles.getByKey(item.getKey());
+            if (record != null) {
+                record.setFilePath(null);
+                ebookFiles.insert(record);
+            }
+        }
+    }
+
+    /**
+     * Record which version of the attachment a cover was read from without keeping the
+     * ebook, so the cover is dropped once the file changes in Zotero
+     */
+    private void recordCoverOnly(ZoteroItem item) {
+        ebookFiles.insert(new EbookFileEntity(item.getKey(), null, item.getMd5(),
+                item.getMtime(), item.getFileSize(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Decode a cover image and store its thumbnails on the extraction scheduler, waiting
+     * for it, so the CPU work shares that pool's limits with every other extraction
+     */
+    private static void writeCover(ZoteroItem item, NetworkScheduler.Lane lane, CancelHandle cancelHandle,
+                                   byte[] coverData, File coverFile) throws IOException {
+        ExtractionScheduler.getInstance().executeAndWait(item.getKey(), lane, cancelHandle, () -> {
+            CoverThumbnails.write(coverData, coverFile);
+            CoverExtractor.touchFile(coverFile);
+        });
+    }
+}
@@ -0,0 +1,229 @@
+package oyvindbs.zotshelf;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A ZIP archive read over HTTP ranges. Opening it fetches the end of central
+ * directory record and the central directory; each entry read afterwards costs
+ * one more range covering just that entry.
+ *
+ * ZIP64 archives are not supported and fail to open with a ZipException.
+ */
+public class RemoteZipFile {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int TAIL_PROBE_SIZE = 16 * 1024; // Holds the directory of most EPUBs
+    private static final int LOCAL_EXTRA_ALLOWANCE = 256; // Local extra fields we guess at before reading the header
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    // Same cap as partial PDF fetches; a directory or entry past it is corrupt or not worth a range
+    static final int MAX_RANGE_SIZE = 16 * 1024 * 1024;
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final HttpRangeSource source;
+    private final Map<String, Entry> entries;
+
+    private RemoteZipFile(HttpRangeSource source, Map<String, Entry> entries) {
+        this.source = source;
+        this.entries = entries;
+    }
+
+    /**
+     * Read the central directory of a remote archive
+     * @throws HttpRangeSource.RangeNotSupportedException If the server can't serve ranges
+     * @throws ZipException If the file is not a ZIP archive this class can read
+     */
+    public static RemoteZipFile open(HttpRangeSource source) throws IOException {
+        byte[] tail = source.readTail(TAIL_PROBE_SIZE);
+        if (source.getSize() < 0) {
+            throw new ZipException("Archive size unknown");
+        }
+        int eocd = findEndOfCentralDirectory(tail);
+        if (eocd < 0 && source.getSize() > tail.length) {
+            // A long archive comment pushed the record out of the first probe
+            tail = source.readTail(EOCD_SIZE + MAX_COMMENT_SIZE);
+            eocd = findEndOfCentralDirectory(tail);
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        int entryCount = readShort(tail, eocd + 10);
+        long directorySize = readInt(tail, eocd + 12);
+        long directoryOffset = readInt(tail, eocd + 16);
+        if (entryCount == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+            throw new ZipException("ZIP64 archives are not supported");
+        }
+        if (directorySize > MAX_RANGE_SIZE || directoryOffset + directorySize > source.getSize()) {
+            throw new ZipException("Invalid central directory size " + directorySize);
+        }
+
+        // The tail usually holds the whole directory already
+        long tailOffset = source.getSize() - tail.length;
+        byte[] directory;
+        int directoryStart;
+        if (directoryOffset >= tailOffset && directoryOffset + directorySize <= tailOffset + eocd) {
+            directory = tail;
+            directoryStart = (int) (directoryOffset - tailOffset);
+        } else {
+            directory = source.read(directoryOffset, (int) directorySize);
+            directoryStart = 0;
+        }
+        int directoryEnd = (int) Math.min(directory.length, directoryStart + directorySize);
+
+        Map<String, Entry> entries = new HashMap<>();
+        int position = directoryStart;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directoryEnd
+                    || readInt(directory, position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+            int flags = readShort(directory, position + 8);
+            int method = readShort(directory, position + 10);
+            long compressedSize = readInt(directory, position + 20);
+            long size = readInt(directory, position + 24);
+            int nameLength = readShort(directory, position + 28);
+            int extraLength = readShort(directory, position + 30);
+            int commentLength = readShort(directory, position + 32);
+            long localHeaderOffset = readInt(directory, position + 42);
+            if (position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength > directoryEnd) {
+                throw new ZipException("Central directory entry " + i + " runs past the directory");
+            }
+            String name = decodeName(directory, position + CENTRAL_HEADER_SIZE, nameLength, flags);
+
+            entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new RemoteZipFile(source, entries);
+    }
+
+    /**
+     * @return The entry with this exact path, or null if the archive has none
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Fetch and decompress one entry
+     */
+    public byte[] readEntry(Entry entry) throws IOException {
+        if (entry.method != METHOD_STORED && entry.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        if (entry.compressedSize > MAX_RANGE_SIZE || entry.size > MAX_RANGE_SIZE) {
+            throw new ZipException("Entry " + entry.name + " is too large: " + entry.size + " bytes");
+        }
+
+        // Guess the local extra field length so header and data usually come in one range
+        int nameLength = entry.name.getBytes("UTF-8").length;
+        int guessedLength = (int) (LOCAL_HEADER_SIZE + nameLength + LOCAL_EXTRA_ALLOWANCE + entry.compressedSize);
+        byte[] range = source.read(entry.localHeaderOffset, guessedLength);
+        if (range.length < LOCAL_HEADER_SIZE || readInt(range, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name);
+        }
+
+        int dataStart = LOCAL_HEADER_SIZE + readShort(range, 26) + readShort(range, 28);
+        byte[] data;
+        if (dataStart + entry.compressedSize <= range.length) {
+            data = new byte[(int) entry.compressedSize];
+            System.arraycopy(range, dataStart, data, 0, data.length);
+        } else {
+            data = source.read(entry.localHeaderOffset + dataStart, (int) entry.compressedSize);
+            if (data.length != entry.compressedSize) {
+                throw new ZipException("Truncated entry " + entry.name);
+            }
+        }
+
+        if (entry.method == METHOD_STORED) {
+            return data;
+        }
+        return inflate(data, (int) entry.size);
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws ZipException {
+        Inflater inflater = new Inflater(true);
+        try {
+            // Raw deflate streams need an extra byte of input to finish
+            byte[] input = new byte[data.length + 1];
+            System.arraycopy(data, 0, input, 0, data.length);
+            inflater.setInput(input);
+
+            byte[] output = new byte[size];
+            int written = 0;
+            while (written < size && !inflater.finished()) {
+                int count = inflater.inflate(output, written, size - written);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += count;
+            }
+            if (written != size) {
+                throw new ZipException("Truncated entry: " + written + " of " + size + " bytes");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt entry: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int findEndOfCentralDirectory(byte[] tail) {
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (readInt(tail, i) == EOCD_SIGNATURE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decodeName(byte[] bytes, int offset, int length, int flags) throws UnsupportedEncodingException {
+        // Bit 11 marks UTF-8 names; EPUB tools that don't set it still write ASCII paths
+        return new String(bytes, offset, length, (flags & 0x800) != 0 ? "UTF-8" : "ISO-8859-1");
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static long readInt(byte[] bytes, int offset) {
+        return (readShort(bytes, offset) | (long) readShort(bytes, offset + 2) << 16) & 0xffffffffL;
+    }
+}
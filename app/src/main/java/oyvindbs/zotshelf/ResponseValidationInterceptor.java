@@ -0,0 +1,79 @@
+package oyvindbs.zotshelf;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Conditional requests for Zotero API calls marked with {@link #VALIDATE_HEADER}.
+ *
+ * Zotero versions its data with Last-Modified-Version and If-Modified-Since-Version
+ * rather than ETags, so OkHttp's cache can't revalidate its responses by itself.
+ * Installed as a network interceptor, this exposes the version as an ETag that must
+ * always be revalidated, and turns the If-None-Match OkHttp sends for a cached
+ * response back into If-Modified-Since-Version. A 304 answer is then served from
+ * the HTTP cache, so unchanged collections and items are not transferred again.
+ */
+public class ResponseValidationInterceptor implements Interceptor {
+
+    public static final String VALIDATE_HEADER = "Zotshelf-Validate";
+
+    private static final String TAG = "ResponseValidation";
+    private static final String VERSION_HEADER = "Last-Modified-Version";
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.header(VALIDATE_HEADER) == null) {
+            return chain.proceed(request);
+        }
+
+        Request.Builder builder = request.newBuilder().removeHeader(VALIDATE_HEADER);
+        String cachedVersion = parseVersion(request.header("If-None-Match"));
+        if (cachedVersion != null) {
+            builder.removeHeader("If-None-Match")
+                    .header("If-Modified-Since-Version", cachedVersion);
+        }
+
+        Response response = chain.proceed(builder.build());
+
+        if (response.code() == 304) {
+            Log.d(TAG, "Not modified since version " + cachedVersion + ": " + request.url().encodedPath());
+        }
+
+        String version = response.header(VERSION_HEADER);
+        if (version == null || !(response.isSuccessful() || response.code() == 304)) {
+            return response;
+        }
+
+        return response.newBuilder()
+                .header("ETag", "\"" + version + "\"")
+                .header("Cache-Control", "no-cache")
+                .removeHeader("Pragma")
+                .build();
+    }
+
+    /**
+     * Get the library version from an ETag written by this interceptor
+     * @return The version, or null if the ETag is missing or not one of ours
+     */
+    private static String parseVersion(String etag) {
+        if (etag == null) {
+            return null;
+        }
+        String version = etag.replace("\"", "").trim();
+        if (version.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < version.length(); i++) {
+            if (!Character.isDigit(version.charAt(i))) {
+                return null;
+            }
+        }
+        return version;
+    }
+}
@@ -25,6 +25,8 @@ public class SettingsActivity extends AppCompatActivity {
     private CheckBox checkBoxShowEpubs;
     private CheckBox checkBoxShowPdfs;
     private CheckBox checkBoxBooksOnly;
+    private CheckBox checkBoxCoversOnly;
+    private TextInputEditText editStorageBudget;
     private RadioGroup radioGroupDisplayMode;
     private RadioButton radioTitleOnly;
     private RadioButton radioAuthorOnly;
@@ -54,6 +56,8 @@ public class SettingsActivity extends AppCompatActivity {
         checkBoxShowEpubs = findViewById(R.id.checkBoxShowEpubs);
         checkBoxShowPdfs = findViewById(R.id.checkBoxShowPdfs);
         checkBoxBooksOnly = findViewById(R.id.checkBoxBooksOnly);
+        checkBoxCoversOnly = findViewById(R.id.checkBoxCoversOnly);
+        editStorageBudget = findViewById(R.id.editStorageBudget);
         radioGroupDisplayMode = findViewById(R.id.radioGroupDisplayMode);
         radioTitleOnly = findViewById(R.id.radioTitleOnly);
         radioAuthorOnly = findViewById(R.id.radioAuthorOnly);
@@ -107,6 +111,10 @@ public class SettingsActivity extends AppCompatActivity {
         checkBoxShowPdfs.setChecked(userPreferences.getShowPdfs());
         checkBoxBooksOnly.setChecked(userPreferences.getBooksOnly());
         
+        // Load storage preferences
+        checkBoxCoversOnly.setChecked(userPreferences.getCoversOnly());
+        editStorageBudget.setText(String.valueOf(userPreferences.getStorageBudgetMb()));
+        
         // Set the display mode radio button
         int displayMode = userPreferences.getDisplayMode();
         switch (displayMode) {
@@ -143,6 +151,16 @@ public class SettingsActivity extends AppCompatActivity {
             Toast.makeText(this, "Please select at least one file type to display", Toast.LENGTH_SHORT).show();
             return;
         }
+        
+        // Validate storage limit
+        String storageBudgetText = editStorageBudget.getText().toString().trim();
+        int storageBudgetMb;
+        try {
+            storageBudgetMb = storageBudgetText.isEmpty() ? 0 : Integer.parseInt(storageBudgetText);
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, "Please enter the storage limit in MB", Toast.LENGTH_SHORT).show();
+            return;
+        }
 
         // Save Zotero credentials
         userPreferences.setZoteroUsername(username);
@@ -154,6 +172,11 @@ public class SettingsActivity extends AppCompatActivity {
         userPreferences.setShowPdfs(showPdfs);
         userPreferences.setBooksOnly(booksOnly);
         
+        // Save storage preferences
+        userPreferences.setCoversOnly(checkBoxCoversOnly.isChecked());
+        userPreferences.setStorageBudgetMb(storageBudgetMb);
+        StorageBudget.getInstance(this).trimAsync();
+        
         // Save display mode
         int displayMode;
         int selectedRadioButtonId = radioGroupDisplayMode.getCheckedRadioButtonId();
@@ -0,0 +1,103 @@
+package oyvindbs.zotshelf;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces identical concurrent loads. The first caller for a key starts the work;
+ * callers that arrive while it is running are attached to it, and everyone receives
+ * the same result once it finishes.
+ *
+ * Each caller gets its own handle. Cancelling it only detaches that caller; the
+ * shared work is cancelled once every caller has left.
+ */
+public class SingleFlight<T> {
+
+    private static final String TAG = "SingleFlight";
+
+    public interface Task<T> {
+        void start(ZoteroApiClient.ZoteroCallback<T> callback, CancelHandle cancelHandle);
+    }
+
+    private static class Flight<T> {
+        final List<ZoteroApiClient.ZoteroCallback<T>> callbacks = new ArrayList<>();
+        final CancelHandle cancelHandle = new CancelHandle();
+    }
+
+    private final Map<String, Flight<T>> inFlight = new HashMap<>();
+
+    /**
+     * Run the task for this key, or wait for the one already running
+     * @return A handle that detaches this caller when cancelled
+     */
+    public CancelHandle run(String key, ZoteroApiClient.ZoteroCallback<T> callback, Task<T> task) {
+        CancelHandle callerHandle = new CancelHandle();
+        Flight<T> flight;
+        boolean isNew = false;
+        synchronized (inFlight) {
+            flight = inFlight.get(key);
+            if (flight == null) {
+                flight = new Flight<>();
+                inFlight.put(key, flight);
+                isNew = true;
+            }
+            flight.callbacks.add(callback);
+            if (!isNew) {
+                Log.d(TAG, "Joined load in flight for " + key + " (" + flight.callbacks.size() + " callers)");
+            }
+        }
+
+        final Flight<T> joined = flight;
+        callerHandle.onCancel(() -> leave(key, joined, callback));
+
+        if (isNew) {
+            task.start(new ZoteroApiClient.ZoteroCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    for (ZoteroApiClient.ZoteroCallback<T> waiting : finish(key, joined)) {
+                        waiting.onSuccess(result);
+                    }
+                }
+
+                @Override
+                public void onError(String errorMessage) {
+                    for (ZoteroApiClient.ZoteroCallback<T> waiting : finish(key, joined)) {
+                        waiting.onError(errorMessage);
+                    }
+                }
+            }, joined.cancelHandle);
+        }
+
+        return callerHandle;
+    }
+
+    private void leave(String key, Flight<T> flight, ZoteroApiClient.ZoteroCallback<T> callback) {
+        boolean abandoned;
+        synchronized (inFlight) {
+            flight.callbacks.remove(callback);
+            abandoned = flight.callbacks.isEmpty() && inFlight.get(key) == flight;
+            if (abandoned) {
+                inFlight.remove(key);
+            }
+        }
+        if (abandoned) {
+            Log.d(TAG, "Cancelling abandoned load for " + key);
+            flight.cancelHandle.cancel();
+        }
+    }
+
+    private List<ZoteroApiClient.ZoteroCallback<T>> finish(String key, Flight<T> flight) {
+        synchronized (inFlight) {
+            if (inFlight.get(key) == flight) {
+                inFlight.remove(key);
+            }
+            List<ZoteroApiClient.ZoteroCallback<T>> waiting = new ArrayList<>(flight.callbacks);
+            flight.callbacks.clear();
+            return waiting;
+        }
+    }
+}
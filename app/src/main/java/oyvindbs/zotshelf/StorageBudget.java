@@ -0,0 +1,262 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import oyvindbs.zotshelf.database.AppDatabase;
+import oyvindbs.zotshelf.database.EbookFileDao;
+import oyvindbs.zotshelf.database.EbookFileEntity;
+import oyvindbs.zotshelf.database.EpubCoverDao;
+
+/**
+ * Keeps downloaded ebooks and covers within the storage limit set in the settings.
+ * Once the cache is over the limit, partial downloads left to be resumed are evicted
+ * first, then the ebooks used least recently, since their covers are already stored,
+ * then the covers used least recently.
+ * A file's last use is its modification time, which is touched whenever the file
+ * is reused or its cover is shown.
+ *
+ * Evicted covers are cleared in the database, so the next sync finds them missing
+ * and fetches them again when their collection is opened.
+ */
+public final class StorageBudget {
+
+    private static final String TAG = "StorageBudget";
+    // Newer files may still be on their way from download to extraction
+    private static final long MIN_AGE_MS = 5 * 60 * 1000;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private static volatile StorageBudget instance;
+
+    private final File cacheDir;
+    private final File coverDir;
+    private final UserPreferences userPreferences;
+    private final EpubCoverDao covers;
+    private final EbookFileDao ebookFiles;
+    private final Executor executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean trimQueued = new AtomicBoolean(false);
+
+    private static class CachedFile {
+        final File file;
+        final long size;
+        final long lastUsed;
+
+        CachedFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = file.lastModified();
+        }
+    }
+
+    public static StorageBudget getInstance(Context context) {
+        if (instance == null) {
+            synchronized (StorageBudget.class) {
+                if (instance == null) {
+                    instance = new StorageBudget(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private StorageBudget(Context context) {
+        cacheDir = new File(context.getFilesDir(), "epubs");
+        coverDir = new File(cacheDir, "covers");
+        userPreferences = new UserPreferences(context);
+        AppDatabase database = AppDatabase.getInstance(context);
+        covers = database.epubCoverDao();
+        ebookFiles = database.ebookFileDao();
+    }
+
+    /**
+     * Trim the cache to the limit in the background. Requests made while a trim is
+     * waiting to run are served by that trim.
+     */
+    public void trimAsync() {
+        if (trimQueued.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                trimQueued.set(false);
+                trimSync();
+            });
+        }
+    }
+
+    /**
+     * Record that files are in use, so they are evicted last
+     * @param paths Paths of the files
+     */
+    public void touchAsync(List<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        executor.execute(() -> {
+            for (String path : paths) {
+                CoverExtractor.touchFile(new File(path));
+            }
+        });
+    }
+
+    /**
+     * Evict files until the cache fits the limit
+     * @return The number of bytes freed
+     */
+    long trimSync() {
+        long budget = userPreferences.getStorageBudgetMb() * BYTES_PER_MB;
+        if (budget <= 0) {
+            return 0;
+        }
+
+        List<CachedFile> partFiles = new ArrayList<>();
+        List<CachedFile> ebooks = new ArrayList<>();
+        List<CachedFile> coverFiles = new ArrayList<>();
+        long used = 0;
+
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                CachedFile cached = new CachedFile(file, file.length());
+                if (file.getName().endsWith(ZoteroApiClient.PART_SUFFIX)) {
+                    partFiles.add(cached);
+                } else {
+                    ebooks.add(cached);
+                }
+                used += cached.size;
+            }
+        }
+        files = coverDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isFile() || file.getName().endsWith(CoverThumbnails.TEMP_SUFFIX)) {
+                    continue;
+                }
+                if (CoverThumbnails.isWidgetFile(file)) {
+                    // Counted here, evicted along with its cover
+                    used += file.length();
+                } else {
+                    CachedFile cover = new CachedFile(file, file.length());
+                    coverFiles.add(cover);
+                    used += cover.size;
+                }
+            }
+        }
+
+        if (used <= budget) {
+            return 0;
+        }
+
+        long usedBefore = used;
+        long cutoff = System.currentTimeMillis() - MIN_AGE_MS;
+        used = evictPartFiles(partFiles, used, budget, cutoff);
+        if (used > budget) {
+            used = evictEbooks(ebooks, used, budget, cutoff);
+        }
+        if (used > budget) {
+            used = evictCovers(coverFiles, used, budget, cutoff);
+        }
+
+        Log.i(TAG, "Freed " + (usedBefore - used) / 1024 + " KB, cache is now "
+                + used / 1024 + " KB of " + budget / 1024 + " KB");
+        if (used > budget) {
+            Log.w(TAG, "Cache is still over its limit; the remaining files are in use");
+        }
+        return usedBefore - used;
+    }
+
+    /**
+     * Delete partial downloads, least recently written first. A download still running
+     * writes to its file all the time, so it is never old enough to be evicted.
+     * @return The bytes still used
+     */
+    private long evictPartFiles(List<CachedFile> partFiles, long used, long budget, long cutoff) {
+        sortByLastUse(partFiles);
+        for (CachedFile partFile : partFiles) {
+            if (used <= budget || partFile.lastUsed > cutoff) {
+                break;
+            }
+            if (!partFile.file.delete()) {
+                Log.w(TAG, "Could not evict " + partFile.file.getName());
+                continue;
+            }
+            used -= partFile.size;
+            Log.d(TAG, "Evicted partial download " + partFile.file.getName());
+        }
+        return used;
+    }
+
+    /**
+     * Delete ebooks, least recently used first, keeping their records so their covers
+     * stay valid
+     * @return The bytes still used
+     */
+    private long evictEbooks(List<CachedFile> ebooks, long used, long budget, long cutoff) {
+        sortByLastUse(ebooks);
+        for (CachedFile ebook : ebooks) {
+            if (used <= budget || ebook.lastUsed > cutoff) {
+                break;
+            }
+            if (!ebook.file.delete()) {
+                Log.w(TAG, "Could not evict " + ebook.file.getName());
+                continue;
+            }
+            used -= ebook.size;
+            // Same as covers-only mode: the record now only describes the cover
+            ebookFiles.clearFilePath(ebook.file.getAbsolutePath());
+            Log.d(TAG, "Evicted ebook " + ebook.file.getName());
+        }
+        return used;
+    }
+
+    /**
+     * Delete covers and their widget thumbnails, least recently used first, and clear
+     * them in the database so they are fetched again
+     * @return The bytes still used
+     */
+    private long evictCovers(List<CachedFile> coverFiles, long used, long budget, long cutoff) {
+        sortByLastUse(coverFiles);
+        for (CachedFile cover : coverFiles) {
+            if (used <= budget || cover.lastUsed > cutoff) {
+                break;
+            }
+            long widgetSize = CoverThumbnails.getWidgetFile(cover.file).length();
+            CoverThumbnails.delete(cover.file);
+            if (cover.file.exists()) {
+                Log.w(TAG, "Could not evict " + cover.file.getName());
+                continue;
+            }
+            used -= cover.size + widgetSize;
+
+            long now = System.currentTimeMillis();
+            for (String itemKey : covers.getIdsByCoverPath(cover.file.getAbsolutePath())) {
+                covers.updateCoverPath(itemKey, null, now);
+                // With the ebook gone too, nothing is left for the record to describe
+                EbookFileEntity record = ebookFiles.getByKey(itemKey);
+                if (record != null && (record.getFilePath() == null || !new File(record.getFilePath()).exists())) {
+                    ebookFiles.deleteByKey(itemKey);
+                }
+            }
+            Log.d(TAG, "Evicted cover " + cover.file.getName());
+        }
+        return used;
+    }
+
+    private static void sortByLastUse(List<CachedFile> files) {
+        Collections.sort(files, new Comparator<CachedFile>() {
+            @Override
+            public int compare(CachedFile a, CachedFile b) {
+                return Long.compare(a.lastUsed, b.lastUsed);
+            }
+        });
+    }
+}
@@ -21,7 +21,7 @@ public class TabStateManager {
 
     public TabStateManager(Context context) {
         preferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        gson = new Gson();
+        gson = ZoteroJson.getGson();
     }
 
     public static class TabInfo {
@@ -15,7 +15,9 @@ public class UserPreferences {
     private static final String KEY_SHOW_EPUBS = "show_epubs";
     private static final String KEY_SHOW_PDFS = "show_pdfs";
     private static final String KEY_BOOKS_ONLY = "books_only";
+    private static final String KEY_COVERS_ONLY = "covers_only";
     private static final String KEY_SORT_MODE = "sort_mode";
+    private static final String KEY_STORAGE_BUDGET_MB = "storage_budget_mb";
     
     // Display mode constants
     public static final int DISPLAY_TITLE_ONLY = 0;
@@ -26,6 +28,8 @@ public class UserPreferences {
     public static final int SORT_BY_TITLE = 0;
     public static final int SORT_BY_AUTHOR = 1;
     
+    public static final int DEFAULT_STORAGE_BUDGET_MB = 2048;
+    
     private final SharedPreferences preferences;
     
     public UserPreferences(Context context) {
@@ -118,6 +122,29 @@ public class UserPreferences {
         preferences.edit().putBoolean(KEY_BOOKS_ONLY, booksOnly).apply();
     }
     
+    /**
+     * Whether only covers are stored, and downloaded ebooks are discarded once their
+     * cover has been read
+     */
+    public boolean getCoversOnly() {
+        return preferences.getBoolean(KEY_COVERS_ONLY, false); // Default to keeping ebooks
+    }
+    
+    public void setCoversOnly(boolean coversOnly) {
+        preferences.edit().putBoolean(KEY_COVERS_ONLY, coversOnly).apply();
+    }
+    
+    /**
+     * Space the downloaded ebooks and covers may take up, in megabytes, or 0 for no limit
+     */
+    public int getStorageBudgetMb() {
+        return preferences.getInt(KEY_STORAGE_BUDGET_MB, DEFAULT_STORAGE_BUDGET_MB);
+    }
+    
+    public void setStorageBudgetMb(int storageBudgetMb) {
+        preferences.edit().putInt(KEY_STORAGE_BUDGET_MB, Math.max(0, storageBudgetMb)).apply();
+    }
+    
     public int getSortMode() {
         return preferences.getInt(KEY_SORT_MODE, SORT_BY_TITLE); // Default to sort by title
     }
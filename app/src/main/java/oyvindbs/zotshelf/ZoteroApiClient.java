@@ -4,25 +4,37 @@ import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import okhttp3.OkHttpClient;
+import com.google.gson.stream.JsonReader;
+
+import oyvindbs.zotshelf.database.AppDatabase;
+import oyvindbs.zotshelf.database.EbookFileDao;
+import oyvindbs.zotshelf.database.EbookFileEntity;
+
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 import retrofit2.http.GET;
 import retrofit2.http.Header;
+import retrofit2.http.Headers;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
 import retrofit2.http.Streaming;
@@ -30,9 +42,31 @@ import retrofit2.http.Url;
 
 public class ZoteroApiClient {
 
-    private static final String BASE_URL = "https://api.zotero.org/";
+    static final String BASE_URL = "https://api.zotero.org/";
     private static final String TAG = "ZoteroApiClient";
     private static final int PAGE_SIZE = 100;
+    private static final int MAX_PARALLEL_PAGES = 4;
+    private static final int MAX_SYNC_RESTARTS = 3; // Times a sync starts over when the library changes under it
+    private static final int MAX_CHILD_LOOKUPS = 8; // Up to this many parents, skip pricing a full listing
+    private static final int MAX_ITEM_KEYS = 50; // Zotero accepts up to 50 keys per itemKey request
+    // Children requests per group. Each group's helpers requeue at the back of the metadata
+    // lane, so other loads get a turn between groups of a long parent list.
+    private static final int CHILD_LOOKUP_GROUP_SIZE = 2 * MAX_PARALLEL_PAGES;
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    static final String PART_SUFFIX = ".part";
+    private static final String TAPPED_SUFFIX = ".tap";
+
+    // Shared by every client, so overlapping loads from tabs and the widget coalesce
+    private static final SingleFlight<List<ZoteroItem>> ITEM_LOADS_IN_FLIGHT = new SingleFlight<>();
+    private static final SingleFlight<String> DOWNLOADS_IN_FLIGHT = new SingleFlight<>();
+
+    // Attachments seen to be something other than an ebook, so they aren't fetched again
+    private static final Set<String> NON_EBOOK_ATTACHMENT_KEYS =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // The load the current thread works for; carried along by runInBackground so
+    // every request a load makes can be cancelled through its handle
+    private static final ThreadLocal<CancelHandle> CURRENT_LOAD = new ThreadLocal<>();
 
     private final Context context;
     private final ZoteroService zoteroService;
@@ -41,24 +75,18 @@ public class ZoteroApiClient {
 
     public ZoteroApiClient(Context context) {
         this.context = context;
-        this.executor = Executors.newCachedThreadPool();
+        this.executor = NetworkScheduler.getInstance().getExecutor(NetworkScheduler.Lane.METADATA);
 
         this.cacheDir = new File(context.getFilesDir(), "epubs");
         if (!cacheDir.exists()) {
             cacheDir.mkdirs();
         }
 
-        OkHttpClient client = new OkHttpClient.Builder().build();
-
-        Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(BASE_URL)
-                .client(client)
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
-
-        zoteroService = retrofit.create(ZoteroService.class);
+        zoteroService = ZoteroHttpStack.getInstance(context).getZoteroService();
     }
 
+    // Calls marked with VALIDATE_HEADER send If-Modified-Since-Version and are
+    // answered from the HTTP cache when Zotero replies 304 Not Modified
     public interface ZoteroService {
         @GET("users/{userId}/items")
         Call<List<ZoteroItem>> getItems(
@@ -75,6 +103,7 @@ public class ZoteroApiClient {
                 @Header("Zotero-API-Key") String apiKey
         );
 
+        @Headers(ResponseValidationInterceptor.VALIDATE_HEADER + ": true")
         @GET("users/{userId}/collections")
         Call<List<ZoteroCollection>> getCollectionsPaginated(
                 @Path("userId") String userId,
@@ -83,6 +112,7 @@ public class ZoteroApiClient {
                 @Query("limit") int limit
         );
 
+        @Headers(ResponseValidationInterceptor.VALIDATE_HEADER + ": true")
         @GET("users/{userId}/items")
         Call<List<ZoteroItem>> getItemsPaginated(
                 @Path("userId") String userId,
@@ -100,6 +130,7 @@ public class ZoteroApiClient {
                 @Header("Zotero-API-Key") String apiKey
         );
 
+        @Headers(ResponseValidationInterceptor.VALIDATE_HEADER + ": true")
         @GET("users/{userId}/collections/{collectionKey}/items")
         Call<List<ZoteroItem>> getItemsByCollectionPaginated(
                 @Path("userId") String userId,
@@ -111,15 +142,71 @@ public class ZoteroApiClient {
                 @Query("limit") int limit
         );
 
+        // itemType is omitted when null, which returns parent items alongside attachments.
+        // Streamed so large libraries can be read item by item
+        @GET("users/{userId}/items")
+        @Streaming
+        Call<ResponseBody> getItemsSincePaginated(
+                @Path("userId") String userId,
+                @Header("Zotero-API-Key") String apiKey,
+                @Query("format") String format,
+                @Query("itemType") String itemType,
+                @Query("since") long since,
+                @Query("start") int start,
+                @Query("limit") int limit
+        );
+
+        @GET("users/{userId}/collections/{collectionKey}/items")
+        @Streaming
+        Call<ResponseBody> getItemsByCollectionSincePaginated(
+                @Path("userId") String userId,
+                @Path("collectionKey") String collectionKey,
+                @Header("Zotero-API-Key") String apiKey,
+                @Query("format") String format,
+                @Query("itemType") String itemType,
+                @Query("since") long since,
+                @Query("start") int start,
+                @Query("limit") int limit
+        );
+
+        // format=versions returns a map of every matching item key to its version
+        @GET("users/{userId}/items")
+        Call<Map<String, Long>> getItemVersions(
+                @Path("userId") String userId,
+                @Header("Zotero-API-Key") String apiKey,
+                @Query("format") String format,
+                @Query("itemType") String itemType
+        );
+
+        @GET("users/{userId}/collections/{collectionKey}/items")
+        Call<Map<String, Long>> getItemVersionsByCollection(
+                @Path("userId") String userId,
+                @Path("collectionKey") String collectionKey,
+                @Header("Zotero-API-Key") String apiKey,
+                @Query("format") String format,
+                @Query("itemType") String itemType
+        );
+
+        // Files are stored separately, so keep them out of the HTTP cache.
+        // range is omitted when null, which downloads the whole file
+        @Headers("Cache-Control: no-store")
         @GET
         @Streaming
-        Call<ResponseBody> downloadFile(@Url String fileUrl, @Header("Zotero-API-Key") String apiKey);
+        Call<ResponseBody> downloadFile(
+                @Url String fileUrl,
+                @Header("Zotero-API-Key") String apiKey,
+                @Header("Range") String range
+        );
 
-        @GET("users/{userId}/items/{itemKey}")
-        Call<ZoteroItem> getItemByKey(
+        // itemKey takes a comma-separated list of up to 50 keys
+        @Headers(ResponseValidationInterceptor.VALIDATE_HEADER + ": true")
+        @GET("users/{userId}/items")
+        Call<List<ZoteroItem>> getItemsByKeys(
                 @Path("userId") String userId,
-                @Path("itemKey") String itemKey,
-                @Header("Zotero-API-Key") String apiKey
+                @Header("Zotero-API-Key") String apiKey,
+                @Query("format") String format,
+                @Query("itemKey") String itemKeys,
+                @Query("limit") int limit
         );
     }
 
@@ -133,15 +220,27 @@ public class ZoteroApiClient {
         void onError(ZoteroItem item, String errorMessage);
     }
 
+    /**
+     * Looks at an ebook while it downloads. Everything read from the stream is also
+     * written to the ebook's file, so looking costs no extra transfer.
+     */
+    public interface DownloadTap {
+        /**
+         * Read as much of the download as needed. Runs on the download thread.
+         * @return true to download the rest of the file, false to stop and discard it
+         */
+        boolean onStream(InputStream stream) throws IOException;
+    }
+
     public void getCollections(String userId, String apiKey, ZoteroCallback<List<ZoteroCollection>> callback) {
-        executor.execute(() -> {
+        runInBackground(() -> {
             if (!validateCredentials(userId, apiKey, callback)) return;
             executeCollectionsCall(zoteroService.getCollections(userId, apiKey), callback);
         });
     }
 
     public void getCollectionsPaginated(String userId, String apiKey, int start, int limit, ZoteroCallback<List<ZoteroCollection>> callback) {
-        executor.execute(() -> {
+        runInBackground(() -> {
             if (!validateCredentials(userId, apiKey, callback)) return;
             executeCollectionsCall(zoteroService.getCollectionsPaginated(userId, apiKey, start, limit), callback);
         });
@@ -163,7 +262,7 @@ public class ZoteroApiClient {
 
     private void executeCollectionsCall(Call<List<ZoteroCollection>> call, ZoteroCallback<List<ZoteroCollection>> callback) {
         try {
-            Response<List<ZoteroCollection>> response = call.execute();
+            Response<List<ZoteroCollection>> response = execute(call);
 
             if (response.isSuccessful()) {
                 List<ZoteroCollection> collections = response.body();
@@ -174,25 +273,7 @@ public class ZoteroApiClient {
                     callback.onError("Received empty response from Zotero");
                 }
             } else {
-                Log.e(TAG, "Failed to fetch collections: " + response.code());
-                String errorBody = "";
-                if (response.errorBody() != null) {
-                    try {
-                        errorBody = response.errorBody().string();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Could not read error body", e);
-                    }
-                }
-
-                if (response.code() == 401) {
-                    callback.onError("Authentication failed. Check your API key and user ID. " + errorBody);
-                } else if (response.code() == 403) {
-                    callback.onError("Access forbidden. Check your API permissions. " + errorBody);
-                } else if (response.code() == 404) {
-                    callback.onError("User not found. Check your user ID. " + errorBody);
-                } else {
-                    callback.onError("Failed to fetch collections: HTTP " + response.code() + " " + errorBody);
-                }
+                callback.onError(getCollectionsErrorMessage(response));
             }
         } catch (IOException e) {
             Log.e(TAG, "API error", e);
@@ -200,12 +281,34 @@ public class ZoteroApiClient {
         }
     }
 
+    private String getCollectionsErrorMessage(Response<?> response) {
+        Log.e(TAG, "Failed to fetch collections: " + response.code());
+        String errorBody = "";
+        if (response.errorBody() != null) {
+            try {
+                errorBody = response.errorBody().string();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read error body", e);
+            }
+        }
+
+        if (response.code() == 401) {
+            return "Authentication failed. Check your API key and user ID. " + errorBody;
+        } else if (response.code() == 403) {
+            return "Access forbidden. Check your API permissions. " + errorBody;
+        } else if (response.code() == 404) {
+            return "User not found. Check your user ID. " + errorBody;
+        } else {
+            return "Failed to fetch collections: HTTP " + response.code() + " " + errorBody;
+        }
+    }
+
     public void getEbookItems(String userId, String apiKey, ZoteroCallback<List<ZoteroItem>> callback) {
-        executor.execute(() -> {
+        runInBackground(() -> {
             Call<List<ZoteroItem>> call = zoteroService.getItems(userId, apiKey, "json", "attachment", PAGE_SIZE);
 
             try {
-                Response<List<ZoteroItem>> response = call.execute();
+                Response<List<ZoteroItem>> response = execute(call);
                 if (response.isSuccessful() && response.body() != null) {
                     callback.onSuccess(filterItemsByUserPreferences(response.body()));
                 } else {
@@ -243,120 +346,433 @@ public class ZoteroApiClient {
         return filteredItems;
     }
 
-    public void downloadEbook(ZoteroItem item, FileCallback callback) {
-        executor.execute(() -> {
-            String fileExtension;
-            String mimeType = item.getMimeType();
-            if ("application/epub+zip".equals(mimeType)) {
-                fileExtension = ".epub";
-            } else if ("application/pdf".equals(mimeType)) {
-                fileExtension = ".pdf";
-            } else {
-                callback.onError(item, "Unsupported file type: " + mimeType);
+    public CancelHandle downloadEbook(ZoteroItem item, FileCallback callback) {
+        return downloadEbook(item, NetworkScheduler.Lane.VISIBLE_DOWNLOAD, callback);
+    }
+
+    /**
+     * Download an ebook in the given scheduler lane, so covers for items on screen
+     * are fetched ahead of background prefetching
+     *
+     * The file is written to a .part file next to its cache name and only renamed into
+     * place once its size and MD5 match the attachment's. A download that fails or is
+     * cancelled keeps its .part file, and the next attempt resumes it with a Range request.
+     * @return A handle that detaches this caller. Once no caller is left, a queued
+     * download is dropped and a running one is stopped
+     */
+    public CancelHandle downloadEbook(ZoteroItem item, NetworkScheduler.Lane lane, FileCallback callback) {
+        return downloadEbook(item, lane, null, callback);
+    }
+
+    /**
+     * Download an ebook as above, letting the tap read it while it arrives. The tap only
+     * sees downloads that start from the first byte, not cached files or resumed ones.
+     * If the tap stops the download, the callback gets an error and nothing is kept.
+     */
+    public CancelHandle downloadEbook(ZoteroItem item, NetworkScheduler.Lane lane, DownloadTap tap,
+                                      FileCallback callback) {
+        // Two screens asking for the same file share one download, so neither
+        // sees the other's partially written file. A tapped download may stop early,
+        // so callers that need the whole file never join one and it gets its own part file.
+        String flightKey = tap != null ? item.getKey() + TAPPED_SUFFIX : item.getKey();
+        ZoteroCallback<String> fileCallback = new ZoteroCallback<String>() {
+            @Override
+            public void onSuccess(String filePath) {
+                callback.onFileDownloaded(item, filePath);
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                callback.onError(item, errorMessage);
+            }
+        };
+
+        return DOWNLOADS_IN_FLIGHT.run(flightKey, fileCallback, (done, cancelHandle) -> NetworkScheduler.getInstance().execute(lane, () -> {
+            try {
+                runDownload(item, tap, done, cancelHandle);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // A database error must still end the flight, or later downloads would wait on it
+                Log.e(TAG, "Download of " + item.getKey() + " failed", e);
+                done.onError("Download failed: " + e);
+            }
+        }));
+    }
+
+    /**
+     * Download a file in its lane, reporting the result through done
+     */
+    private void runDownload(ZoteroItem item, DownloadTap tap, ZoteroCallback<String> done,
+                             CancelHandle cancelHandle) {
+        if (cancelHandle.isCancelled()) {
+            Log.d(TAG, "Dropped cancelled download of " + item.getKey());
+            return;
+        }
+
+        File ebookFile = getEbookFile(item);
+        if (ebookFile == null) {
+            done.onError("Unsupported file type: " + item.getMimeType());
+            return;
+        }
+
+        EbookFileDao ebookFiles = AppDatabase.getInstance(context).ebookFileDao();
+        if (ebookFile.exists()) {
+            if (isCachedFileCurrent(item, ebookFile, ebookFiles)) {
+                CoverExtractor.touchFile(ebookFile);
+                done.onSuccess(ebookFile.getAbsolutePath());
                 return;
             }
+            Log.d(TAG, "Cached " + ebookFile.getName() + " no longer matches Zotero, downloading it again");
+            ebookFile.delete();
+            CoverThumbnails.delete(CoverExtractor.getCoverFile(ebookFile));
+        }
+
+        if (item.getLinks() == null || item.getLinks().getEnclosure() == null) {
+            done.onError("No download link available");
+            return;
+        }
 
-            String fileName = item.getKey() + fileExtension;
-            File ebookFile = new File(cacheDir, fileName);
+        String downloadUrl = item.getLinks().getEnclosure().getHref();
+        String apiKey = new UserPreferences(context).getZoteroApiKey();
+        File partFile = new File(cacheDir, ebookFile.getName()
+                + (tap != null ? TAPPED_SUFFIX : "") + PART_SUFFIX);
 
-            if (ebookFile.exists()) {
-                callback.onFileDownloaded(item, ebookFile.getAbsolutePath());
+        try {
+            MessageDigest md5 = newMd5Digest();
+            String error = downloadToPartFile(downloadUrl, apiKey, partFile,
+                    item.getFileSize(), md5, tap, cancelHandle);
+            if (error != null) {
+                done.onError(error);
+                return;
+            }
+            String fileMd5 = toHex(md5.digest());
+            if (item.getMd5() != null && !item.getMd5().equalsIgnoreCase(fileMd5)) {
+                partFile.delete();
+                done.onError("Downloaded file is corrupt (MD5 mismatch)");
                 return;
             }
 
-            if (item.getLinks() == null || item.getLinks().getEnclosure() == null) {
-                callback.onError(item, "No download link available");
+            // Rename within the same directory, so the cache name only ever
+            // refers to a complete file
+            if (!partFile.renameTo(ebookFile)) {
+                partFile.delete();
+                done.onError("Failed to save file");
                 return;
             }
+            // Zotero's own values, which later syncs are compared against
+            ebookFiles.insert(new EbookFileEntity(item.getKey(), ebookFile.getAbsolutePath(),
+                    item.getMd5() != null ? item.getMd5() : fileMd5, item.getMtime(),
+                    ebookFile.length(), System.currentTimeMillis()));
+            StorageBudget.getInstance(context).trimAsync();
+            done.onSuccess(ebookFile.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "Download error", e);
+            done.onError("Network error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check a downloaded ebook against the attachment as the API describes it now.
+     * Files from before downloads were recorded are hashed once and recorded if they
+     * match; after that, the record is compared instead of the file.
+     */
+    private boolean isCachedFileCurrent(ZoteroItem item, File ebookFile, EbookFileDao ebookFiles) {
+        EbookFileEntity record = ebookFiles.getByKey(item.getKey());
+        if (record != null) {
+            // A different length means the file was cut short or overwritten locally
+            return record.matches(item.getMd5(), item.getMtime())
+                    && (record.getSize() < 0 || record.getSize() == ebookFile.length());
+        }
+        if (item.getMd5() == null) {
+            return true;
+        }
 
-            String downloadUrl = item.getLinks().getEnclosure().getHref();
-            String apiKey = new UserPreferences(context).getZoteroApiKey();
+        String fileMd5;
+        try {
+            MessageDigest md5 = newMd5Digest();
+            digestFile(ebookFile, md5);
+            fileMd5 = toHex(md5.digest());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cached " + ebookFile.getName(), e);
+            return false;
+        }
+        if (!item.getMd5().equalsIgnoreCase(fileMd5)) {
+            return false;
+        }
+        ebookFiles.insert(new EbookFileEntity(item.getKey(), ebookFile.getAbsolutePath(), fileMd5,
+                item.getMtime(), ebookFile.length(), System.currentTimeMillis()));
+        return true;
+    }
 
-            Call<ResponseBody> call = zoteroService.downloadFile(downloadUrl, apiKey);
+    /**
+     * Get the file a downloaded ebook is kept in
+     * @return The file, which may not exist yet, or null if the item is not an EPUB or PDF
+     */
+    public File getEbookFile(ZoteroItem item) {
+        String mimeType = item.getMimeType();
+        if ("application/epub+zip".equals(mimeType)) {
+            return new File(cacheDir, item.getKey() + ".epub");
+        } else if ("application/pdf".equals(mimeType)) {
+            return new File(cacheDir, item.getKey() + ".pdf");
+        }
+        return null;
+    }
 
-            try {
-                Response<ResponseBody> response = call.execute();
-                if (response.isSuccessful() && response.body() != null) {
-                    boolean success = writeResponseBodyToDisk(response.body(), ebookFile);
+    /**
+     * Download a file into its .part file, continuing from whatever an earlier attempt
+     * left there, and check the result against the expected size
+     * @param expectedSize Size of the complete file, or -1 if unknown
+     * @param md5 Digest that is left holding the MD5 of the complete file, computed
+     *            as it is written
+     * @param tap Reads the download as it arrives, or null
+     * @return null if the part file now holds the complete file, otherwise an error message
+     * @throws IOException On network or storage errors; the part file is kept for the next attempt
+     */
+    private String downloadToPartFile(String url, String apiKey, File partFile, long expectedSize,
+                                      MessageDigest md5, DownloadTap tap, CancelHandle cancelHandle) throws IOException {
+        long offset = partFile.length();
+        if (expectedSize >= 0 && offset > expectedSize) {
+            partFile.delete();
+            offset = 0;
+        }
 
-                    if (success) {
-                        callback.onFileDownloaded(item, ebookFile.getAbsolutePath());
-                    } else {
-                        callback.onError(item, "Failed to save file");
+        // The digest covers the whole file, so start with what is already on disk
+        md5.reset();
+        if (offset > 0) {
+            digestFile(partFile, md5);
+        }
+
+        String range = offset > 0 ? "bytes=" + offset + "-" : null;
+        Call<ResponseBody> call = zoteroService.downloadFile(url, apiKey, range);
+
+        // Tracked until the body is written; cancelling makes the write fail
+        cancelHandle.track(call);
+        try {
+            Response<ResponseBody> response = call.execute();
+            if (response.code() == 416 && offset > 0) {
+                // Nothing left after the offset: an earlier attempt got every byte
+                // but stopped before the file was checked
+                Log.d(TAG, partFile.getName() + " was already complete");
+            } else if (!response.isSuccessful() || response.body() == null) {
+                return "Failed to download file: " + response.code();
+            } else {
+                boolean resumed = offset > 0 && response.code() == 206 && getRangeStart(response) == offset;
+                if (resumed) {
+                    Log.d(TAG, "Resuming " + partFile.getName() + " at " + offset + " bytes");
+                } else {
+                    // The server sent the whole file, or a range we didn't ask for
+                    md5.reset();
+                }
+                if (expectedSize < 0) {
+                    expectedSize = getCompleteSize(response, resumed ? offset : 0);
+                }
+                if (tap != null && !resumed) {
+                    if (!writeTappedBodyToDisk(response.body(), partFile, md5, tap)) {
+                        partFile.delete();
+                        return "Download stopped early";
                     }
                 } else {
-                    callback.onError(item, "Failed to download file: " + response.code());
+                    writeResponseBodyToDisk(response.body(), partFile, resumed, md5);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Download error", e);
-                callback.onError(item, "Network error: " + e.getMessage());
             }
-        });
+        } finally {
+            cancelHandle.untrack(call);
+        }
+
+        long size = partFile.length();
+        if (expectedSize >= 0 && size != expectedSize) {
+            partFile.delete();
+            return "Incomplete download: " + size + " of " + expectedSize + " bytes";
+        }
+        return null;
     }
 
-    private boolean writeResponseBodyToDisk(ResponseBody body, File outputFile) {
+    private void writeResponseBodyToDisk(ResponseBody body, File outputFile, boolean append,
+                                         MessageDigest digest) throws IOException {
         try (InputStream inputStream = body.byteStream();
-             OutputStream outputStream = new FileOutputStream(outputFile)) {
+             OutputStream outputStream = new FileOutputStream(outputFile, append)) {
 
-            byte[] buffer = new byte[4096];
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
             int read;
             while ((read = inputStream.read(buffer)) != -1) {
                 outputStream.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
             }
 
             outputStream.flush();
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "File write error", e);
-            // Don't leave a partial file behind; it would be treated as a valid cache hit
-            if (outputFile.exists()) {
-                outputFile.delete();
+        }
+    }
+
+    /**
+     * Write a download to disk while the tap reads it, then write whatever the tap left
+     * @return false if the tap stopped the download
+     */
+    private boolean writeTappedBodyToDisk(ResponseBody body, File outputFile, MessageDigest digest,
+                                          DownloadTap tap) throws IOException {
+        try (InputStream inputStream = body.byteStream();
+             OutputStream outputStream = new FileOutputStream(outputFile)) {
+
+            TeeInputStream tee = new TeeInputStream(inputStream, outputStream, digest);
+            boolean downloadRest;
+            try {
+                downloadRest = tap.onStream(tee);
+            } catch (IOException | RuntimeException e) {
+                if (tee.failure != null) {
+                    throw tee.failure;
+                }
+                // The tap couldn't make sense of the file, which is no reason to lose it
+                Log.w(TAG, "Download tap failed on " + outputFile.getName(), e);
+                downloadRest = true;
             }
-            return false;
+            if (!downloadRest) {
+                return false;
+            }
+
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+            while (tee.read(buffer, 0, buffer.length) != -1) {
+                // Copied to the file by the tee
+            }
+            outputStream.flush();
+            return true;
         }
     }
 
-    private void getParentItem(String userId, String apiKey, String parentItemKey, ZoteroCallback<ZoteroItem> callback) {
-        if (parentItemKey == null || parentItemKey.isEmpty()) {
-            callback.onError("Parent item key is null or empty");
-            return;
+    /**
+     * Copies what is read to a file and a digest. Closing it leaves the underlying
+     * streams open, as they belong to the download. Remembers I/O failures so they
+     * can be told apart from errors of whoever is reading.
+     */
+    private static class TeeInputStream extends InputStream {
+        private final InputStream source;
+        private final OutputStream copy;
+        private final MessageDigest digest;
+        IOException failure;
+
+        TeeInputStream(InputStream source, OutputStream copy, MessageDigest digest) {
+            this.source = source;
+            this.copy = copy;
+            this.digest = digest;
         }
 
-        executor.execute(() -> {
-            Call<ZoteroItem> call = zoteroService.getItemByKey(userId, parentItemKey, apiKey);
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
 
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
             try {
-                Response<ZoteroItem> response = call.execute();
-                if (response.isSuccessful() && response.body() != null) {
-                    callback.onSuccess(response.body());
-                } else {
-                    callback.onError("Failed to fetch parent item: " + response.code());
+                int count = source.read(buffer, offset, length);
+                if (count > 0) {
+                    copy.write(buffer, offset, count);
+                    digest.update(buffer, offset, count);
                 }
+                return count;
             } catch (IOException e) {
-                Log.e(TAG, "API error", e);
-                callback.onError("Network error: " + e.getMessage());
+                failure = e;
+                throw e;
             }
-        });
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes still belong in the file
+            byte[] buffer = new byte[(int) Math.min(count, DOWNLOAD_BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Get the first byte offset of a 206 response from its Content-Range
+     * @return The offset, or -1 if the header is missing or invalid
+     */
+    private static long getRangeStart(Response<?> response) {
+        String contentRange = response.headers().get("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the size of the complete file from a download response
+     * @param offset Bytes already on disk before this response
+     * @return The size, or -1 if the server didn't say
+     */
+    private static long getCompleteSize(Response<ResponseBody> response, long offset) {
+        String contentRange = response.headers().get("Content-Range");
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1; // "*" when the server doesn't know
+                }
+            }
+        }
+        long contentLength = response.body().contentLength();
+        return contentLength >= 0 ? offset + contentLength : -1;
+    }
+
+    private static MessageDigest newMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static void digestFile(File file, MessageDigest digest) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
     }
 
     private void getAllEbookItems(String userId, String apiKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
-        executor.execute(() -> {
+        runInBackground(() -> {
             if (tags != null && !tags.trim().isEmpty()) {
                 getAllEbookItemsWithTagFilter(userId, apiKey, null, tags, callback);
             } else {
-                getAllEbookItemsPaginated(userId, apiKey, null, new ArrayList<>(), 0, callback);
+                getAllEbookItemsPaginated(userId, apiKey, null, callback);
             }
         });
     }
 
     private void getAllEbookItemsByCollection(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
-        executor.execute(() -> {
+        runInBackground(() -> {
             if (tags != null && !tags.trim().isEmpty()) {
                 getAllEbookItemsWithTagFilter(userId, apiKey, collectionKey, tags, callback);
             } else if (collectionKey == null || collectionKey.isEmpty()) {
                 getAllEbookItems(userId, apiKey, null, callback);
             } else {
-                getAllEbookItemsPaginated(userId, apiKey, collectionKey, new ArrayList<>(), 0, callback);
+                getAllEbookItemsPaginated(userId, apiKey, collectionKey, callback);
             }
         });
     }
@@ -364,37 +780,73 @@ public class ZoteroApiClient {
     /**
      * Get ebook items by finding parent items with tags, then getting their attachments.
      * Tags in Zotero live on parent items, not on the attachments themselves.
+     *
+     * Each parent links to its best attachment, so for parents with a single child
+     * the attachments are fetched in itemKey batches. Parents with more children are
+     * looked up individually, unless listing every attachment in scope takes fewer
+     * requests.
      */
     private void getAllEbookItemsWithTagFilter(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
-        getParentItemsWithTags(userId, apiKey, collectionKey, tags, new ZoteroCallback<List<ZoteroItem>>() {
-            @Override
-            public void onSuccess(List<ZoteroItem> parentItems) {
-                Log.d(TAG, "Found " + parentItems.size() + " parent items with tags: " + tags);
+        try {
+            List<ZoteroItem> parentItems = getParentItemsWithTags(userId, apiKey, collectionKey, tags);
+            Log.d(TAG, "Found " + parentItems.size() + " parent items with tags: " + tags);
 
-                if (parentItems.isEmpty()) {
-                    callback.onSuccess(new ArrayList<>());
-                    return;
+            if (parentItems.isEmpty()) {
+                callback.onSuccess(new ArrayList<>());
+                return;
+            }
+
+            Map<String, ZoteroItem> parentsByKey = new HashMap<>();
+            List<String> bestAttachmentKeys = new ArrayList<>();
+            Set<String> multiChildParents = new HashSet<>();
+            for (ZoteroItem parentItem : parentItems) {
+                parentsByKey.put(parentItem.getKey(), parentItem);
+
+                String attachmentKey = parentItem.getBestAttachmentKey();
+                int numChildren = parentItem.getNumChildren();
+                if (numChildren == 0) {
+                    continue;
+                }
+                if (numChildren == 1 && attachmentKey != null) {
+                    bestAttachmentKeys.add(attachmentKey);
+                } else {
+                    multiChildParents.add(parentItem.getKey());
                 }
+            }
 
-                getAttachmentsForParentItems(userId, apiKey, parentItems, callback);
+            List<ZoteroItem> attachments = new ArrayList<>();
+            if (!bestAttachmentKeys.isEmpty()) {
+                Collections.sort(bestAttachmentKeys);
+                attachments.addAll(getItemsByKeys(userId, apiKey, bestAttachmentKeys));
+            }
+            if (!multiChildParents.isEmpty()) {
+                attachments.addAll(getChildAttachments(userId, apiKey, collectionKey, multiChildParents));
             }
 
-            @Override
-            public void onError(String errorMessage) {
-                callback.onError(errorMessage);
+            List<ZoteroItem> filtered = filterItemsByUserPreferences(attachments);
+            for (ZoteroItem attachment : filtered) {
+                attachment.setParentItem(parentsByKey.get(attachment.getParentItemKey()));
             }
-        });
+
+            Log.d(TAG, "Found " + filtered.size() + " ebook attachments for tags: " + tags);
+            callback.onSuccess(filtered);
+        } catch (PageFetchException e) {
+            Log.e(TAG, "API Error Response: " + e.getMessage());
+            callback.onError(e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "API error", e);
+            callback.onError("Network error: " + e.getMessage());
+        }
     }
 
     /**
      * Get top-level items (books, articles, etc.) that have all the specified tags
      */
-    private void getParentItemsWithTags(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
+    private List<ZoteroItem> getParentItemsWithTags(String userId, String apiKey, String collectionKey, String tags) throws IOException {
         List<String> tagList = parseTagsToList(tags);
 
         if (tagList == null || tagList.isEmpty()) {
-            callback.onSuccess(new ArrayList<>());
-            return;
+            return new ArrayList<>();
         }
 
         StringBuilder urlBuilder = new StringBuilder(BASE_URL + "users/" + userId);
@@ -414,140 +866,422 @@ public class ZoteroApiClient {
             }
         }
 
-        Call<List<ZoteroItem>> call = zoteroService.getItemsWithDynamicUrl(urlBuilder.toString(), apiKey);
+        String baseUrl = urlBuilder.toString();
+        PageRequest<ZoteroItem> pageRequest = start -> zoteroService.getItemsWithDynamicUrl(
+                baseUrl + "&start=" + start + "&limit=" + PAGE_SIZE, apiKey);
 
-        try {
-            Response<List<ZoteroItem>> response = call.execute();
-            if (response.isSuccessful() && response.body() != null) {
-                callback.onSuccess(response.body());
-            } else {
-                String errorMsg = "Failed to fetch parent items: HTTP " + response.code();
-                try {
-                    if (response.errorBody() != null) {
-                        errorMsg = response.errorBody().string();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Could not read error body", e);
-                }
-                callback.onError(errorMsg);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "API error", e);
-            callback.onError("Network error: " + e.getMessage());
+        Response<List<ZoteroItem>> firstPage = execute(pageRequest.createCall(0));
+        if (!firstPage.isSuccessful() || firstPage.body() == null) {
+            throw new PageFetchException(readErrorMessage(firstPage,
+                    "Failed to fetch parent items: HTTP " + firstPage.code()));
         }
+
+        return fetchAllPages(firstPage, pageRequest);
     }
 
     /**
-     * Get child attachments for a list of parent items
+     * Get every child attachment of the given parent items. The API can't filter by
+     * parent, so each parent takes one children request. With more than a handful
+     * of parents, the first page of all attachments in scope tells from Total-Results
+     * what listing them would cost, and the cheaper of the two is used.
      */
-    private void getAttachmentsForParentItems(String userId, String apiKey, List<ZoteroItem> parentItems, ZoteroCallback<List<ZoteroItem>> callback) {
-        List<ZoteroItem> allAttachments = new ArrayList<>();
-        final int[] itemsProcessed = {0};
-        final int totalItems = parentItems.size();
-
-        for (ZoteroItem parentItem : parentItems) {
-            getChildAttachments(userId, apiKey, parentItem.getKey(), new ZoteroCallback<List<ZoteroItem>>() {
-                @Override
-                public void onSuccess(List<ZoteroItem> attachments) {
-                    synchronized (allAttachments) {
-                        List<ZoteroItem> filtered = filterItemsByUserPreferences(attachments);
-
-                        for (ZoteroItem attachment : filtered) {
-                            attachment.setParentItem(parentItem);
-                        }
-
-                        allAttachments.addAll(filtered);
-                        itemsProcessed[0]++;
+    private List<ZoteroItem> getChildAttachments(String userId, String apiKey, String collectionKey, Set<String> parentKeys) throws IOException {
+        List<String> keys = new ArrayList<>(parentKeys);
+
+        if (keys.size() > MAX_CHILD_LOOKUPS) {
+            PageRequest<ZoteroItem> pageRequest = attachmentPages(userId, apiKey, collectionKey);
+            Response<List<ZoteroItem>> firstPage = execute(pageRequest.createCall(0));
+            if (!firstPage.isSuccessful() || firstPage.body() == null) {
+                throw new PageFetchException(readErrorMessage(firstPage,
+                        "Failed to fetch attachments: HTTP " + firstPage.code()));
+            }
 
-                        if (itemsProcessed[0] == totalItems) {
-                            callback.onSuccess(allAttachments);
-                        }
+            int totalResults = getTotalResults(firstPage);
+            int remainingPages = totalResults < 0 ? Integer.MAX_VALUE
+                    : (totalResults + PAGE_SIZE - 1) / PAGE_SIZE - 1;
+            if (remainingPages < keys.size()) {
+                Log.d(TAG, "Listing " + totalResults + " attachments for " + keys.size() + " parents");
+                List<ZoteroItem> children = new ArrayList<>();
+                for (ZoteroItem attachment : fetchAllPages(firstPage, pageRequest)) {
+                    if (parentKeys.contains(attachment.getParentItemKey())) {
+                        children.add(attachment);
                     }
                 }
+                return children;
+            }
+            Log.d(TAG, "Looking up children of " + keys.size() + " parents instead of listing "
+                    + totalResults + " attachments");
+        }
 
-                @Override
-                public void onError(String errorMessage) {
-                    Log.e(TAG, "Error getting attachments for parent " + parentItem.getKey() + ": " + errorMessage);
-                    // Continue processing other items even if one fails
-                    synchronized (allAttachments) {
-                        itemsProcessed[0]++;
-                        if (itemsProcessed[0] == totalItems) {
-                            callback.onSuccess(allAttachments);
-                        }
-                    }
-                }
-            });
+        // In groups, so a long list of parents doesn't hold the lane until it is done
+        List<ZoteroItem> children = new ArrayList<>();
+        for (int from = 0; from < keys.size(); from += CHILD_LOOKUP_GROUP_SIZE) {
+            List<String> group = keys.subList(from, Math.min(from + CHILD_LOOKUP_GROUP_SIZE, keys.size()));
+            children.addAll(fetchBatches(group.size(), index -> zoteroService.getItemsWithDynamicUrl(
+                    BASE_URL + "users/" + userId + "/items/" + group.get(index) + "/children?format=json&itemType=attachment&limit=" + PAGE_SIZE,
+                    apiKey)));
         }
+        return children;
     }
 
-    /**
-     * Get child items (attachments) for a specific parent item
-     */
-    private void getChildAttachments(String userId, String apiKey, String parentKey, ZoteroCallback<List<ZoteroItem>> callback) {
-        String url = BASE_URL + "users/" + userId + "/items/" + parentKey + "/children?format=json";
+    private PageRequest<ZoteroItem> attachmentPages(String userId, String apiKey, String collectionKey) {
+        return start -> {
+            if (collectionKey == null || collectionKey.isEmpty()) {
+                return zoteroService.getItemsPaginated(userId, apiKey, "json", "attachment", start, PAGE_SIZE);
+            }
+            return zoteroService.getItemsByCollectionPaginated(userId, collectionKey, apiKey, "json", "attachment", start, PAGE_SIZE);
+        };
+    }
 
-        Call<List<ZoteroItem>> call = zoteroService.getItemsWithDynamicUrl(url, apiKey);
+    private void getAllEbookItemsPaginated(String userId, String apiKey, String collectionKey,
+                                           ZoteroCallback<List<ZoteroItem>> callback) {
+        PageRequest<ZoteroItem> pageRequest = attachmentPages(userId, apiKey, collectionKey);
 
         try {
-            Response<List<ZoteroItem>> response = call.execute();
-            if (response.isSuccessful() && response.body() != null) {
-                callback.onSuccess(response.body());
+            Response<List<ZoteroItem>> firstPage = execute(pageRequest.createCall(0));
+
+            if (firstPage.isSuccessful() && firstPage.body() != null) {
+                List<ZoteroItem> allItems = filterItemsByUserPreferences(fetchAllPages(firstPage, pageRequest));
+                Log.d(TAG, "Fetched total of " + allItems.size() + " ebook items (all pages)");
+                callback.onSuccess(allItems);
             } else {
-                callback.onError("Failed to fetch children: HTTP " + response.code());
+                String errorMsg = readErrorMessage(firstPage, "Failed to fetch items: HTTP " + firstPage.code());
+                Log.e(TAG, "API Error Response: " + errorMsg);
+                callback.onError(errorMsg);
             }
+        } catch (PageFetchException e) {
+            Log.e(TAG, "API Error Response: " + e.getMessage());
+            callback.onError(e.getMessage());
         } catch (IOException e) {
+            Log.e(TAG, "API error", e);
             callback.onError("Network error: " + e.getMessage());
         }
     }
 
-    private void getAllEbookItemsPaginated(String userId, String apiKey, String collectionKey,
-                                           List<ZoteroItem> allItems, int start,
-                                           ZoteroCallback<List<ZoteroItem>> callback) {
+    /**
+     * Get every collection in the library, fetching pages concurrently
+     */
+    public void getAllCollections(String userId, String apiKey, ZoteroCallback<List<ZoteroCollection>> callback) {
+        runInBackground(() -> {
+            if (!validateCredentials(userId, apiKey, callback)) return;
 
-        Call<List<ZoteroItem>> call;
-        if (collectionKey == null || collectionKey.isEmpty()) {
-            call = zoteroService.getItemsPaginated(userId, apiKey, "json", "attachment", start, PAGE_SIZE);
-        } else {
-            call = zoteroService.getItemsByCollectionPaginated(userId, collectionKey, apiKey, "json", "attachment", start, PAGE_SIZE);
+            PageRequest<ZoteroCollection> pageRequest =
+                    start -> zoteroService.getCollectionsPaginated(userId, apiKey, start, PAGE_SIZE);
+
+            try {
+                Response<List<ZoteroCollection>> firstPage = execute(pageRequest.createCall(0));
+                if (firstPage.isSuccessful() && firstPage.body() != null) {
+                    List<ZoteroCollection> collections = fetchAllPages(firstPage, pageRequest);
+                    Log.d(TAG, "Received " + collections.size() + " collections (all pages)");
+                    callback.onSuccess(collections);
+                } else {
+                    callback.onError(getCollectionsErrorMessage(firstPage));
+                }
+            } catch (PageFetchException e) {
+                callback.onError(e.getMessage());
+            } catch (IOException e) {
+                Log.e(TAG, "API error", e);
+                callback.onError("Network error: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Creates the call for the page of a paginated endpoint starting at the given offset
+     */
+    private interface PageRequest<T> {
+        Call<List<T>> createCall(int start);
+    }
+
+    /**
+     * Creates the call for one of several independent requests, by index
+     */
+    private interface BatchRequest<T> {
+        Call<List<T>> createCall(int index);
+    }
+
+    /**
+     * An HTTP error while fetching one of the remaining pages
+     */
+    private static class PageFetchException extends IOException {
+        PageFetchException(String message) {
+            super(message);
         }
+    }
 
-        try {
-            Response<List<ZoteroItem>> response = call.execute();
+    /**
+     * The library changed while its pages were being fetched, so the page offsets no
+     * longer line up and items at page boundaries may have been skipped
+     */
+    private static class LibraryChangedException extends IOException {
+        LibraryChangedException(String message) {
+            super(message);
+        }
+    }
 
-            if (response.isSuccessful() && response.body() != null) {
-                List<ZoteroItem> items = response.body();
-                allItems.addAll(filterItemsByUserPreferences(items));
+    /**
+     * Fetch the remaining pages of a paginated endpoint after the first one.
+     * Total-Results from the first page tells how many pages there are, so they are
+     * fetched concurrently and reassembled in page order. Without that header pages
+     * are fetched one after another.
+     *
+     * @return The items of all pages, first page included
+     */
+    private <T> List<T> fetchAllPages(Response<List<T>> firstPage, PageRequest<T> pageRequest) throws IOException {
+        List<T> firstItems = firstPage.body();
+        List<T> allItems = new ArrayList<>(firstItems);
+        if (firstItems.size() < PAGE_SIZE) {
+            return allItems;
+        }
 
-                if (items.size() == PAGE_SIZE) {
-                    // More items available, fetch next page
-                    getAllEbookItemsPaginated(userId, apiKey, collectionKey, allItems, start + PAGE_SIZE, callback);
-                } else {
-                    Log.d(TAG, "Fetched total of " + allItems.size() + " ebook items (all pages)");
-                    callback.onSuccess(allItems);
+        int totalResults = getTotalResults(firstPage);
+        if (totalResults < 0) {
+            int start = PAGE_SIZE;
+            while (true) {
+                List<T> items = fetchPage(pageRequest, start);
+                allItems.addAll(items);
+                if (items.size() < PAGE_SIZE) {
+                    return allItems;
                 }
-            } else {
-                String errorMsg = "Failed to fetch items: HTTP " + response.code();
+                start += PAGE_SIZE;
+            }
+        }
+
+        int pageCount = (totalResults + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (pageCount <= 1) {
+            return allItems;
+        }
+
+        allItems.addAll(fetchBatches(pageCount - 1, index -> pageRequest.createCall((index + 1) * PAGE_SIZE)));
+
+        Log.d(TAG, "Fetched " + pageCount + " pages (" + allItems.size() + " of " + totalResults + " results)");
+        return allItems;
+    }
+
+    /**
+     * Run a number of independent list requests, at most MAX_PARALLEL_PAGES at a time,
+     * and concatenate their results in index order.
+     */
+    private <T> List<T> fetchBatches(int batchCount, BatchRequest<T> batchRequest) throws IOException {
+        final List<List<T>> batches = new ArrayList<>(Collections.nCopies(batchCount, (List<T>) null));
+
+        runBatches(batchCount, index -> {
+            List<T> items = fetchBatch(batchRequest, index);
+            synchronized (batches) {
+                batches.set(index, items);
+            }
+        });
+
+        List<T> allItems = new ArrayList<>();
+        synchronized (batches) {
+            for (List<T> items : batches) {
+                if (items != null) {
+                    allItems.addAll(items);
+                }
+            }
+        }
+        return allItems;
+    }
+
+    /**
+     * One of several independent pieces of network work, by index
+     */
+    private interface BatchTask {
+        void run(int index) throws IOException;
+    }
+
+    /**
+     * Run batchCount tasks, at most MAX_PARALLEL_PAGES at a time, and return once all
+     * of them have finished. The first failure stops further tasks from starting and
+     * is rethrown here.
+     *
+     * The calling thread runs tasks too, so this finishes even when no executor
+     * thread is free to help.
+     */
+    private void runBatches(int batchCount, BatchTask task) throws IOException {
+        final AtomicInteger nextBatch = new AtomicInteger(0);
+        final AtomicInteger completedBatches = new AtomicInteger(0);
+        final Exception[] failure = new Exception[1];
+        final Object lock = new Object();
+
+        Runnable worker = () -> {
+            while (true) {
+                synchronized (lock) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                }
+                int index = nextBatch.getAndIncrement();
+                if (index >= batchCount) {
+                    return;
+                }
+
                 try {
-                    if (response.errorBody() != null) {
-                        errorMsg = response.errorBody().string();
-                        Log.e(TAG, "API Error Response: " + errorMsg);
+                    task.run(index);
+                } catch (IOException | RuntimeException e) {
+                    synchronized (lock) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                } finally {
+                    synchronized (lock) {
+                        completedBatches.incrementAndGet();
+                        lock.notifyAll();
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "Could not read error body", e);
                 }
-                callback.onError(errorMsg);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "API error", e);
-            callback.onError("Network error: " + e.getMessage());
+        };
+
+        int helpers = Math.min(MAX_PARALLEL_PAGES, batchCount) - 1;
+        for (int i = 0; i < helpers; i++) {
+            runInBackground(worker);
+        }
+        worker.run();
+
+        // Every batch has been claimed; wait for the ones still in flight on other threads
+        int claimedBatches = Math.min(nextBatch.get(), batchCount);
+        synchronized (lock) {
+            while (completedBatches.get() < claimedBatches && failure[0] == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while fetching pages");
+                }
+            }
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
+            } else if (failure[0] != null) {
+                throw (RuntimeException) failure[0];
+            }
+        }
+    }
+
+    private <T> List<T> fetchBatch(BatchRequest<T> batchRequest, int index) throws IOException {
+        Response<List<T>> response = execute(batchRequest.createCall(index));
+        if (!response.isSuccessful() || response.body() == null) {
+            throw new PageFetchException(readErrorMessage(response,
+                    "Failed to fetch batch " + index + ": HTTP " + response.code()));
+        }
+        return response.body();
+    }
+
+    private <T> List<T> fetchPage(PageRequest<T> pageRequest, int start) throws IOException {
+        Response<List<T>> response = execute(pageRequest.createCall(start));
+        if (!response.isSuccessful() || response.body() == null) {
+            throw new PageFetchException(readErrorMessage(response,
+                    "Failed to fetch page at " + start + ": HTTP " + response.code()));
+        }
+        return response.body();
+    }
+
+    /**
+     * Run a task on the metadata executor as part of the load running on this thread,
+     * so requests it makes are cancelled together with that load
+     */
+    private void runInBackground(Runnable task) {
+        runInBackground(CURRENT_LOAD.get(), task);
+    }
+
+    private void runInBackground(CancelHandle cancelHandle, Runnable task) {
+        executor.execute(() -> runWithCancelHandle(cancelHandle, task));
+    }
+
+    /**
+     * Run a task with the given handle as the current load. The task is skipped
+     * if the load was cancelled while it waited in the queue.
+     */
+    private static void runWithCancelHandle(CancelHandle cancelHandle, Runnable task) {
+        if (cancelHandle != null && cancelHandle.isCancelled()) {
+            return;
+        }
+        CancelHandle previous = CURRENT_LOAD.get();
+        CURRENT_LOAD.set(cancelHandle);
+        try {
+            task.run();
+        } finally {
+            CURRENT_LOAD.set(previous);
+        }
+    }
+
+    /**
+     * Execute a call that is cancelled if the current load is
+     */
+    private <T> Response<T> execute(Call<T> call) throws IOException {
+        CancelHandle cancelHandle = track(call);
+        try {
+            return call.execute();
+        } finally {
+            untrack(cancelHandle, call);
+        }
+    }
+
+    /**
+     * Tie a call to the current load. A call tied to a load that was already
+     * cancelled is cancelled immediately, so executing it fails.
+     * @return The handle of the current load, or null if there is none
+     */
+    private static CancelHandle track(Call<?> call) {
+        CancelHandle cancelHandle = CURRENT_LOAD.get();
+        if (cancelHandle != null) {
+            cancelHandle.track(call);
         }
+        return cancelHandle;
     }
 
-    public void getAllEbookItemsWithMetadata(String userId, String apiKey, String collectionKey, ZoteroCallback<List<ZoteroItem>> callback) {
-        getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, null, callback);
+    private static void untrack(CancelHandle cancelHandle, Call<?> call) {
+        if (cancelHandle != null) {
+            cancelHandle.untrack(call);
+        }
     }
 
-    public void getAllEbookItemsWithMetadata(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
+    private int getTotalResults(Response<?> response) {
+        String total = response.headers().get("Total-Results");
+        if (total == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(total.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid Total-Results: " + total);
+            return -1;
+        }
+    }
+
+    public CancelHandle getAllEbookItemsWithMetadata(String userId, String apiKey, String collectionKey, ZoteroCallback<List<ZoteroItem>> callback) {
+        return getAllEbookItemsWithMetadata(userId, apiKey, collectionKey, null, callback);
+    }
+
+    /**
+     * Get ebook attachments with their parent items for a library, collection and/or tags.
+     * Identical loads that overlap, such as two tabs on the same collection or a tab and
+     * the widget, share a single set of requests.
+     * @return A handle that detaches this caller; the requests stop once no caller is left
+     */
+    public CancelHandle getAllEbookItemsWithMetadata(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
+        UserPreferences prefs = new UserPreferences(context);
+        String loadKey = userId + "|" + (collectionKey != null ? collectionKey : "") + "|" +
+                (tags != null ? tags.trim() : "") + "|" + prefs.getShowEpubs() + prefs.getShowPdfs() + prefs.getBooksOnly();
+
+        ZoteroCallback<List<ZoteroItem>> callerCallback = new ZoteroCallback<List<ZoteroItem>>() {
+            @Override
+            public void onSuccess(List<ZoteroItem> items) {
+                // Each caller gets its own list to sort or filter
+                callback.onSuccess(new ArrayList<>(items));
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                callback.onError(errorMessage);
+            }
+        };
+
+        return ITEM_LOADS_IN_FLIGHT.run(loadKey, callerCallback, (done, cancelHandle) ->
+                runWithCancelHandle(cancelHandle, () -> loadEbookItemsWithMetadata(userId, apiKey, collectionKey, tags, done)));
+    }
+
+    private void loadEbookItemsWithMetadata(String userId, String apiKey, String collectionKey, String tags, ZoteroCallback<List<ZoteroItem>> callback) {
         ZoteroCallback<List<ZoteroItem>> ebookCallback = new ZoteroCallback<List<ZoteroItem>>() {
             @Override
             public void onSuccess(List<ZoteroItem> ebookItems) {
@@ -562,44 +1296,7 @@ public class ZoteroApiClient {
                     ebookItems = bookItems;
                 }
 
-                if (ebookItems.isEmpty()) {
-                    callback.onSuccess(new ArrayList<>());
-                    return;
-                }
-
-                final List<ZoteroItem> processedItems = Collections.synchronizedList(new ArrayList<>());
-                final AtomicInteger itemsToProcess = new AtomicInteger(ebookItems.size());
-
-                for (ZoteroItem ebookItem : ebookItems) {
-                    String parentKey = ebookItem.getParentItemKey();
-
-                    if (parentKey != null && !parentKey.isEmpty() && ebookItem.getParentItem() == null) {
-                        getParentItem(userId, apiKey, parentKey, new ZoteroCallback<ZoteroItem>() {
-                            @Override
-                            public void onSuccess(ZoteroItem parentItem) {
-                                ebookItem.setParentItem(parentItem);
-                                processedItems.add(ebookItem);
-                                if (itemsToProcess.decrementAndGet() == 0) {
-                                    callback.onSuccess(processedItems);
-                                }
-                            }
-
-                            @Override
-                            public void onError(String errorMessage) {
-                                Log.e(TAG, "Error fetching parent item: " + errorMessage);
-                                processedItems.add(ebookItem);
-                                if (itemsToProcess.decrementAndGet() == 0) {
-                                    callback.onSuccess(processedItems);
-                                }
-                            }
-                        });
-                    } else {
-                        processedItems.add(ebookItem);
-                        if (itemsToProcess.decrementAndGet() == 0) {
-                            callback.onSuccess(processedItems);
-                        }
-                    }
-                }
+                resolveParentItems(userId, apiKey, ebookItems, callback);
             }
 
             @Override
@@ -615,6 +1312,378 @@ public class ZoteroApiClient {
         }
     }
 
+    /**
+     * Attach parent items to attachments that don't have one yet, so titles,
+     * authors and item types come from the actual book rather than the file.
+     * Parents are fetched MAX_ITEM_KEYS at a time with the itemKey parameter.
+     * Attachments whose parent can't be fetched are passed through unchanged.
+     */
+    private void resolveParentItems(String userId, String apiKey, List<ZoteroItem> ebookItems, ZoteroCallback<List<ZoteroItem>> callback) {
+        if (ebookItems.isEmpty()) {
+            callback.onSuccess(new ArrayList<>());
+            return;
+        }
+
+        resolveParentItemsSync(userId, apiKey, ebookItems);
+        callback.onSuccess(new ArrayList<>(ebookItems));
+    }
+
+    private void resolveParentItemsSync(String userId, String apiKey, List<ZoteroItem> ebookItems) {
+        Set<String> keySet = new HashSet<>();
+        for (ZoteroItem ebookItem : ebookItems) {
+            String parentKey = ebookItem.getParentItemKey();
+            if (parentKey != null && !parentKey.isEmpty() && ebookItem.getParentItem() == null) {
+                keySet.add(parentKey);
+            }
+        }
+
+        if (keySet.isEmpty()) {
+            return;
+        }
+
+        // Sorted so the same parents always produce the same request URLs
+        List<String> parentKeys = new ArrayList<>(keySet);
+        Collections.sort(parentKeys);
+
+        try {
+            Map<String, ZoteroItem> parentsByKey = new HashMap<>();
+            for (ZoteroItem parent : getItemsByKeys(userId, apiKey, parentKeys)) {
+                parentsByKey.put(parent.getKey(), parent);
+            }
+
+            for (ZoteroItem ebookItem : ebookItems) {
+                ZoteroItem parent = parentsByKey.get(ebookItem.getParentItemKey());
+                if (parent != null && ebookItem.getParentItem() == null) {
+                    ebookItem.setParentItem(parent);
+                }
+            }
+            Log.d(TAG, "Resolved " + parentsByKey.size() + " of " + parentKeys.size() + " parent items");
+        } catch (IOException e) {
+            Log.e(TAG, "Error fetching parent items: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fetch items by key, MAX_ITEM_KEYS per request
+     */
+    private List<ZoteroItem> getItemsByKeys(String userId, String apiKey, List<String> itemKeys) throws IOException {
+        return fetchBatches(getItemKeyBatchCount(itemKeys), itemKeyBatches(userId, apiKey, itemKeys));
+    }
+
+    private static int getItemKeyBatchCount(List<String> itemKeys) {
+        return (itemKeys.size() + MAX_ITEM_KEYS - 1) / MAX_ITEM_KEYS;
+    }
+
+    /**
+     * Requests for a list of keys, MAX_ITEM_KEYS per request
+     */
+    private BatchRequest<ZoteroItem> itemKeyBatches(String userId, String apiKey, List<String> itemKeys) {
+        return index -> {
+            int from = index * MAX_ITEM_KEYS;
+            int to = Math.min(from + MAX_ITEM_KEYS, itemKeys.size());
+
+            StringBuilder keys = new StringBuilder();
+            for (String key : itemKeys.subList(from, to)) {
+                if (keys.length() > 0) {
+                    keys.append(',');
+                }
+                keys.append(key);
+            }
+            return zoteroService.getItemsByKeys(userId, apiKey, "json", keys.toString(), MAX_ITEM_KEYS);
+        };
+    }
+
+    /**
+     * Receives changed items page by page while getEbookItemChanges streams them,
+     * so a sync never holds more than a few pages in memory
+     */
+    public interface ItemChangeListener {
+        /** Changed ebook attachments, with their parent items attached where possible */
+        void onChangedAttachments(List<ZoteroItem> attachments);
+        /** Changed parent items, whose title, creators or type may have been edited */
+        void onChangedParents(List<ZoteroItem> parents);
+        /**
+         * Keys of attachments in scope that the cache has no entry for, asked once the
+         * changes have been streamed. Called on a network thread.
+         */
+        List<String> findUncachedKeys(Set<String> currentKeys);
+    }
+
+    /**
+     * Stream the ebook attachments that changed since a library version, for the whole
+     * library or a single collection. A version of 0 fetches every attachment.
+     * Each page is read straight from the response with a JsonReader and handed to the
+     * listener before the next one is kept, so memory use doesn't grow with the library.
+     *
+     * When the library hasn't changed, this costs a single request: the first page
+     * reports the same Last-Modified-Version that was passed in.
+     *
+     * Every page must report the version of the first. If the library changes while the
+     * pages are fetched, the sync starts over, as the Zotero sync documentation prescribes.
+     *
+     * Cancelling the handle cancels the request being streamed and any pages still queued.
+     */
+    public void getEbookItemChanges(String userId, String apiKey, String collectionKey, long sinceVersion,
+                                    CancelHandle cancelHandle, ItemChangeListener listener,
+                                    ZoteroCallback<LibraryDelta> callback) {
+        getEbookItemChanges(userId, apiKey, collectionKey, sinceVersion, cancelHandle, listener, callback, 0);
+    }
+
+    private void getEbookItemChanges(String userId, String apiKey, String collectionKey, long sinceVersion,
+                                     CancelHandle cancelHandle, ItemChangeListener listener,
+                                     ZoteroCallback<LibraryDelta> callback, int restarts) {
+        runInBackground(cancelHandle, () -> {
+            if (!validateCredentials(userId, apiKey, callback)) return;
+
+            // A full sync only needs attachments; a delta also needs changed parents,
+            // since title and author edits happen on the parent item
+            String itemType = sinceVersion > 0 ? null : "attachment";
+            StreamPageRequest pageRequest = start -> {
+                if (collectionKey == null || collectionKey.isEmpty()) {
+                    return zoteroService.getItemsSincePaginated(userId, apiKey, "json", itemType, sinceVersion, start, PAGE_SIZE);
+                }
+                return zoteroService.getItemsByCollectionSincePaginated(userId, collectionKey, apiKey, "json", itemType, sinceVersion, start, PAGE_SIZE);
+            };
+
+            Call<ResponseBody> firstCall = pageRequest.createCall(0);
+            CancelHandle firstCallHandle = track(firstCall);
+            try {
+                Response<ResponseBody> firstPage = firstCall.execute();
+                if (!firstPage.isSuccessful() || firstPage.body() == null) {
+                    callback.onError(readErrorMessage(firstPage, "Failed to fetch changes: HTTP " + firstPage.code()));
+                    return;
+                }
+
+                long libraryVersion = getLibraryVersion(firstPage);
+                if (sinceVersion > 0 && libraryVersion == sinceVersion) {
+                    firstPage.body().close();
+                    Log.d(TAG, "Library unchanged since version " + sinceVersion);
+                    callback.onSuccess(LibraryDelta.unchanged(libraryVersion));
+                    return;
+                }
+
+                final AtomicInteger attachmentCount = new AtomicInteger();
+                final AtomicInteger parentCount = new AtomicInteger();
+                StreamPageHandler pageHandler = items -> {
+                    List<ZoteroItem> changedAttachments = new ArrayList<>();
+                    List<ZoteroItem> changedParents = new ArrayList<>();
+                    splitChangedItems(items, changedAttachments, changedParents);
+
+                    if (!changedParents.isEmpty()) {
+                        listener.onChangedParents(changedParents);
+                        parentCount.addAndGet(changedParents.size());
+                    }
+                    if (!changedAttachments.isEmpty()) {
+                        resolveParentItemsSync(userId, apiKey, changedAttachments);
+                        listener.onChangedAttachments(changedAttachments);
+                        attachmentCount.addAndGet(changedAttachments.size());
+                    }
+                };
+
+                int pageItems = streamPage(firstPage.body(), pageHandler);
+                int totalResults = getTotalResults(firstPage);
+                if (pageItems >= PAGE_SIZE) {
+                    if (totalResults < 0) {
+                        int start = PAGE_SIZE;
+                        while (streamPage(pageRequest, start, libraryVersion, pageHandler) >= PAGE_SIZE) {
+                            start += PAGE_SIZE;
+                        }
+                    } else {
+                        int pageCount = (totalResults + PAGE_SIZE - 1) / PAGE_SIZE;
+                        runBatches(pageCount - 1, index -> streamPage(pageRequest, (index + 1) * PAGE_SIZE,
+                                libraryVersion, pageHandler));
+                    }
+                }
+
+                Set<String> currentKeys = getAttachmentKeys(userId, apiKey, collectionKey);
+                if (currentKeys == null) {
+                    callback.onError("Failed to fetch attachment versions");
+                    return;
+                }
+
+                // since= only returns items whose own version changed, so an existing book
+                // added to a collection never shows up in it. Fetch those by key.
+                List<String> uncachedKeys = new ArrayList<>();
+                for (String key : listener.findUncachedKeys(currentKeys)) {
+                    if (!NON_EBOOK_ATTACHMENT_KEYS.contains(key)) {
+                        uncachedKeys.add(key);
+                    }
+                }
+                if (!uncachedKeys.isEmpty()) {
+                    Log.d(TAG, "Fetching " + uncachedKeys.size() + " attachments in scope but not cached");
+                    BatchRequest<ZoteroItem> batchRequest = itemKeyBatches(userId, apiKey, uncachedKeys);
+                    runBatches(getItemKeyBatchCount(uncachedKeys),
+                            index -> pageHandler.onPage(fetchBatch(batchRequest, index)));
+                }
+
+                Log.d(TAG, "Changes since " + sinceVersion + ": " + attachmentCount.get() +
+                        " attachments, " + parentCount.get() + " parents (version " + libraryVersion + ")");
+
+                callback.onSuccess(new LibraryDelta(libraryVersion, attachmentCount.get(),
+                        parentCount.get(), currentKeys));
+            } catch (LibraryChangedException e) {
+                // What was already passed on is stored again by the next pass, which is harmless
+                if (restarts < MAX_SYNC_RESTARTS) {
+                    Log.i(TAG, e.getMessage() + ", restarting the sync");
+                    getEbookItemChanges(userId, apiKey, collectionKey, sinceVersion, cancelHandle, listener,
+                            callback, restarts + 1);
+                } else {
+                    callback.onError(e.getMessage());
+                }
+            } catch (PageFetchException e) {
+                callback.onError(e.getMessage());
+            } catch (IOException e) {
+                Log.e(TAG, "API error", e);
+                callback.onError("Network error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error storing changes", e);
+                callback.onError("Failed to update cache: " + e.getMessage());
+            } finally {
+                untrack(firstCallHandle, firstCall);
+            }
+        });
+    }
+
+    /**
+     * Creates the call for a streamed page starting at the given offset
+     */
+    private interface StreamPageRequest {
+        Call<ResponseBody> createCall(int start);
+    }
+
+    /**
+     * Handles the items of one streamed page
+     */
+    private interface StreamPageHandler {
+        void onPage(List<ZoteroItem> items) throws IOException;
+    }
+
+    /**
+     * Fetch and stream one page, checking it belongs to the same library version as the first
+     * @throws LibraryChangedException If the page reports a different library version
+     */
+    private int streamPage(StreamPageRequest pageRequest, int start, long libraryVersion,
+                           StreamPageHandler handler) throws IOException {
+        // Stays tracked while the body streams, so cancelling stops the read too
+        Call<ResponseBody> call = pageRequest.createCall(start);
+        CancelHandle cancelHandle = track(call);
+        try {
+            Response<ResponseBody> response = call.execute();
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new PageFetchException(readErrorMessage(response,
+                        "Failed to fetch page at " + start + ": HTTP " + response.code()));
+            }
+            long pageVersion = getLibraryVersion(response);
+            if (libraryVersion > 0 && pageVersion > 0 && pageVersion != libraryVersion) {
+                response.body().close();
+                throw new LibraryChangedException("Library changed from version " + libraryVersion
+                        + " to " + pageVersion + " during the sync");
+            }
+            return streamPage(response.body(), handler);
+        } finally {
+            untrack(cancelHandle, call);
+        }
+    }
+
+    /**
+     * Read a page of items straight from the response body and pass it on
+     * @return The number of items in the page
+     */
+    private int streamPage(ResponseBody body, StreamPageHandler handler) throws IOException {
+        List<ZoteroItem> items = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(body.charStream())) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                items.add(ZoteroItem.fromJson(reader));
+            }
+            reader.endArray();
+        }
+        handler.onPage(items);
+        return items.size();
+    }
+
+    /**
+     * Split a page of changed items into ebook attachments and parent items, and
+     * attach parents that arrived in the same page
+     */
+    private void splitChangedItems(List<ZoteroItem> items, List<ZoteroItem> changedAttachments,
+                                   List<ZoteroItem> changedParents) {
+        Map<String, ZoteroItem> parentsByKey = new HashMap<>();
+        for (ZoteroItem item : items) {
+            String type = item.getItemType();
+            if ("attachment".equals(type)) {
+                if (isSupportedEbook(item)) {
+                    changedAttachments.add(item);
+                    NON_EBOOK_ATTACHMENT_KEYS.remove(item.getKey());
+                } else {
+                    NON_EBOOK_ATTACHMENT_KEYS.add(item.getKey());
+                }
+            } else if (type != null && !type.equals("note") && !type.equals("annotation")) {
+                changedParents.add(item);
+                parentsByKey.put(item.getKey(), item);
+            }
+        }
+
+        for (ZoteroItem attachment : changedAttachments) {
+            ZoteroItem parent = parentsByKey.get(attachment.getParentItemKey());
+            if (parent != null) {
+                attachment.setParentItem(parent);
+            }
+        }
+    }
+
+    /**
+     * Get the key of every attachment currently in the library or collection
+     * @return The keys, or null if the request failed
+     */
+    private Set<String> getAttachmentKeys(String userId, String apiKey, String collectionKey) throws IOException {
+        Call<Map<String, Long>> call;
+        if (collectionKey == null || collectionKey.isEmpty()) {
+            call = zoteroService.getItemVersions(userId, apiKey, "versions", "attachment");
+        } else {
+            call = zoteroService.getItemVersionsByCollection(userId, collectionKey, apiKey, "versions", "attachment");
+        }
+
+        Response<Map<String, Long>> response = execute(call);
+        if (!response.isSuccessful() || response.body() == null) {
+            Log.e(TAG, "Failed to fetch item versions: " + response.code());
+            return null;
+        }
+        return new HashSet<>(response.body().keySet());
+    }
+
+    private boolean isSupportedEbook(ZoteroItem item) {
+        String mimeType = item.getMimeType();
+        return "application/epub+zip".equals(mimeType) || "application/pdf".equals(mimeType);
+    }
+
+    private long getLibraryVersion(Response<?> response) {
+        String version = response.headers().get("Last-Modified-Version");
+        if (version == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(version.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid Last-Modified-Version: " + version);
+            return 0;
+        }
+    }
+
+    private String readErrorMessage(Response<?> response, String fallback) {
+        try {
+            if (response.errorBody() != null) {
+                String errorBody = response.errorBody().string();
+                if (!errorBody.isEmpty()) {
+                    return errorBody;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read error body", e);
+        }
+        return fallback;
+    }
+
     /**
      * Convert semicolon-separated tags string into a List for Zotero API.
      * Zotero API requires multiple tag parameters for AND logic.
@@ -2,6 +2,11 @@ package oyvindbs.zotshelf;
 
 import android.util.Log;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 
 public class ZoteroCollection {
     private static final String TAG = "ZoteroCollection";
@@ -29,6 +34,68 @@ public class ZoteroCollection {
         }
     }
     
+    /**
+     * Read one collection from an API response, keeping only the key, name and parent
+     */
+    public static ZoteroCollection fromJson(JsonReader reader) throws IOException {
+        ZoteroCollection collection = new ZoteroCollection();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("key") && reader.peek() == JsonToken.STRING) {
+                collection.key = reader.nextString();
+            } else if (name.equals("data") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                collection.data = readData(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return collection;
+    }
+    
+    /**
+     * Write the collection in the shape fromJson reads
+     */
+    public void toJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if (key != null) {
+            writer.name("key").value(key);
+        }
+        if (data != null) {
+            writer.name("data").beginObject();
+            if (data.name != null) {
+                writer.name("name").value(data.name);
+            }
+            if (data.parentCollection != null) {
+                writer.name("parentCollection").value(data.parentCollection);
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+    
+    private static ZoteroCollectionData readData(JsonReader reader) throws IOException {
+        ZoteroCollectionData data = new ZoteroCollectionData();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (name.equals("name") && token == JsonToken.STRING) {
+                data.name = reader.nextString();
+            } else if (name.equals("parentCollection") && token == JsonToken.STRING) {
+                data.parentCollection = reader.nextString();
+            } else if (name.equals("parentCollection") && token == JsonToken.BOOLEAN) {
+                // Top-level collections send false
+                data.parentCollection = String.valueOf(reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return data;
+    }
+    
     public String getKey() {
         return key;
     }
@@ -0,0 +1,64 @@
+package oyvindbs.zotshelf;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * The one OkHttp client and Retrofit service shared by every ZoteroApiClient,
+ * so fragments, activities and the widget reuse pooled connections, TLS sessions
+ * and the HTTP cache instead of each building their own.
+ */
+public final class ZoteroHttpStack {
+
+    private static final long HTTP_CACHE_SIZE = 20 * 1024 * 1024; // 20 MB
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile ZoteroHttpStack instance;
+
+    private final ZoteroApiClient.ZoteroService zoteroService;
+
+    public static ZoteroHttpStack getInstance(Context context) {
+        if (instance == null) {
+            synchronized (ZoteroHttpStack.class) {
+                if (instance == null) {
+                    instance = new ZoteroHttpStack(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private ZoteroHttpStack(Context context) {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .cache(new Cache(new File(context.getCacheDir(), "http"), HTTP_CACHE_SIZE))
+                .addInterceptor(new RateGovernorInterceptor())
+                .addNetworkInterceptor(new ResponseValidationInterceptor())
+                .addNetworkInterceptor(new ApiKeyScopeInterceptor())
+                .build();
+
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(ZoteroApiClient.BASE_URL)
+                .client(client)
+                .addConverterFactory(GsonConverterFactory.create(ZoteroJson.getGson()))
+                .build();
+
+        zoteroService = retrofit.create(ZoteroApiClient.ZoteroService.class);
+    }
+
+    public ZoteroApiClient.ZoteroService getZoteroService() {
+        return zoteroService;
+    }
+}
@@ -2,6 +2,13 @@ package oyvindbs.zotshelf;
 
 
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ZoteroItem {
     
@@ -14,6 +21,9 @@ public class ZoteroItem {
     @SerializedName("links")
     private ZoteroLinks links;
     
+    @SerializedName("meta")
+    private ZoteroMeta meta;
+    
     // Reference to parent item (not from JSON, set programmatically)
     private ZoteroItem parentItem;
     
@@ -36,6 +46,14 @@ public class ZoteroItem {
         
         @SerializedName("itemType")
         private String itemType;
+        
+        // MD5 of the stored file, for attachments with one
+        @SerializedName("md5")
+        private String md5;
+        
+        // Modification time of the stored file, in milliseconds
+        @SerializedName("mtime")
+        private Long mtime;
     }
     
     // Nested class to represent creator data
@@ -55,9 +73,23 @@ public class ZoteroItem {
         @SerializedName("enclosure")
         private ZoteroLink enclosure;
         
+        // Best attachment of a parent item, as chosen by Zotero
+        @SerializedName("attachment")
+        private ZoteroLink attachment;
+        
         public ZoteroLink getEnclosure() {
             return enclosure;
         }
+        
+        public ZoteroLink getAttachment() {
+            return attachment;
+        }
+    }
+    
+    // Nested class to represent item metadata
+    public static class ZoteroMeta {
+        @SerializedName("numChildren")
+        private Integer numChildren;
     }
     
     // Nested class to represent a link
@@ -68,9 +100,20 @@ public class ZoteroItem {
         @SerializedName("type")
         private String type;
         
+        @SerializedName("attachmentType")
+        private String attachmentType;
+        
+        // Size in bytes of the file behind an enclosure link
+        @SerializedName("length")
+        private Long length;
+        
         public String getHref() {
             return href;
         }
+        
+        public String getAttachmentType() {
+            return attachmentType;
+        }
     }
     
     public String getKey() {
@@ -107,6 +150,282 @@ public class ZoteroItem {
         return parentItem;
     }
     
+    public String getItemType() {
+        return data != null ? data.itemType : null;
+    }
+    
+    /**
+     * Rebuild the attachment fields needed to download a cached entry again, along
+     * with the version of its file
+     * @param md5 MD5 of the stored file, or null if unknown
+     * @param mtime Modification time of the stored file, or -1 if unknown
+     * @param fileSize Size of the stored file, or -1 if unknown
+     */
+    public static ZoteroItem fromCachedEntry(String key, String title, String contentType, String filename,
+                                             String downloadUrl, String md5, long mtime, long fileSize) {
+        ZoteroItem item = new ZoteroItem();
+        item.key = key;
+        item.data = new ZoteroItemData();
+        item.data.title = title;
+        item.data.contentType = contentType;
+        item.data.filename = filename;
+        item.data.itemType = "attachment";
+        item.data.md5 = md5;
+        item.data.mtime = mtime >= 0 ? mtime : null;
+        
+        if (downloadUrl != null) {
+            item.links = new ZoteroLinks();
+            item.links.enclosure = new ZoteroLink();
+            item.links.enclosure.href = downloadUrl;
+            item.links.enclosure.length = fileSize >= 0 ? fileSize : null;
+        }
+        
+        return item;
+    }
+    
+    /**
+     * Read one item from a streamed API response, keeping only the fields the
+     * cover cache uses. Everything else (notes, tags, relations, ...) is skipped
+     * without being materialized.
+     */
+    public static ZoteroItem fromJson(JsonReader reader) throws IOException {
+        ZoteroItem item = new ZoteroItem();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "key":
+                    item.key = reader.nextString();
+                    break;
+                case "data":
+                    item.data = readData(reader);
+                    break;
+                case "links":
+                    item.links = readLinks(reader);
+                    break;
+                case "meta":
+                    item.meta = readMeta(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return item;
+    }
+    
+    private static ZoteroItemData readData(JsonReader reader) throws IOException {
+        ZoteroItemData data = new ZoteroItemData();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "title":
+                    data.title = reader.nextString();
+                    break;
+                case "creators":
+                    data.creators = readCreators(reader);
+                    break;
+                case "contentType":
+                    data.contentType = reader.nextString();
+                    break;
+                case "filename":
+                    data.filename = reader.nextString();
+                    break;
+                case "itemType":
+                    data.itemType = reader.nextString();
+                    break;
+                case "md5":
+                    data.md5 = reader.nextString();
+                    break;
+                case "mtime":
+                    data.mtime = reader.nextLong();
+                    break;
+                case "parentItem":
+                    // Top-level items send false here
+                    if (reader.peek() == JsonToken.STRING) {
+                        data.parentItemKey = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return data;
+    }
+    
+    private static ZoteroCreator[] readCreators(JsonReader reader) throws IOException {
+        List<ZoteroCreator> creators = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ZoteroCreator creator = new ZoteroCreator();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "firstName":
+                        creator.firstName = reader.nextString();
+                        break;
+                    case "lastName":
+                        creator.lastName = reader.nextString();
+                        break;
+                    case "creatorType":
+                        creator.creatorType = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            creators.add(creator);
+        }
+        reader.endArray();
+        return creators.toArray(new ZoteroCreator[0]);
+    }
+    
+    private static ZoteroLinks readLinks(JsonReader reader) throws IOException {
+        ZoteroLinks links = new ZoteroLinks();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("enclosure")) {
+                links.enclosure = readLink(reader);
+            } else if (name.equals("attachment")) {
+                links.attachment = readLink(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return links;
+    }
+    
+    private static ZoteroLink readLink(JsonReader reader) throws IOException {
+        ZoteroLink link = new ZoteroLink();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "href":
+                    link.href = reader.nextString();
+                    break;
+                case "type":
+                    link.type = reader.nextString();
+                    break;
+                case "attachmentType":
+                    link.attachmentType = reader.nextString();
+                    break;
+                case "length":
+                    link.length = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return link;
+    }
+    
+    private static ZoteroMeta readMeta(JsonReader reader) throws IOException {
+        ZoteroMeta meta = new ZoteroMeta();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("numChildren") && reader.peek() == JsonToken.NUMBER) {
+                meta.numChildren = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return meta;
+    }
+    
+    /**
+     * Write the item in the shape fromJson reads, with the same fields and nothing else
+     */
+    public void toJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writeString(writer, "key", key);
+        if (data != null) {
+            writer.name("data").beginObject();
+            writeString(writer, "title", data.title);
+            if (data.creators != null) {
+                writer.name("creators").beginArray();
+                for (ZoteroCreator creator : data.creators) {
+                    writer.beginObject();
+                    writeString(writer, "firstName", creator.firstName);
+                    writeString(writer, "lastName", creator.lastName);
+                    writeString(writer, "creatorType", creator.creatorType);
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
+            writeString(writer, "contentType", data.contentType);
+            writeString(writer, "filename", data.filename);
+            writeString(writer, "itemType", data.itemType);
+            writeString(writer, "md5", data.md5);
+            if (data.mtime != null) {
+                writer.name("mtime").value(data.mtime);
+            }
+            writeString(writer, "parentItem", data.parentItemKey);
+            writer.endObject();
+        }
+        if (links != null) {
+            writer.name("links").beginObject();
+            writeLink(writer, "enclosure", links.enclosure);
+            writeLink(writer, "attachment", links.attachment);
+            writer.endObject();
+        }
+        if (meta != null && meta.numChildren != null) {
+            writer.name("meta").beginObject();
+            writer.name("numChildren").value(meta.numChildren);
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+    
+    private static void writeLink(JsonWriter writer, String name, ZoteroLink link) throws IOException {
+        if (link == null) {
+            return;
+        }
+        writer.name(name).beginObject();
+        writeString(writer, "href", link.href);
+        writeString(writer, "type", link.type);
+        writeString(writer, "attachmentType", link.attachmentType);
+        if (link.length != null) {
+            writer.name("length").value(link.length);
+        }
+        writer.endObject();
+    }
+    
+    private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+    
     /**
      * Get the item type of the parent item (the actual content type)
      * @return The parent item's type, or null if no parent
@@ -123,7 +442,15 @@ public class ZoteroItem {
      * @return true if this is likely a book, false otherwise
      */
     public boolean isBook() {
-        String parentType = getParentItemType();
+        return isBookType(getParentItemType());
+    }
+    
+    /**
+     * Check if a parent item type is likely a book
+     * @param parentType The parent item's type, or null if there is no parent
+     * @return true if this is likely a book, false otherwise
+     */
+    public static boolean isBookType(String parentType) {
         if (parentType == null) {
             // If no parent, assume it could be a standalone book
             // (some books might not have parent items)
@@ -209,6 +536,54 @@ public class ZoteroItem {
         return links;
     }
     
+    /**
+     * Get the MD5 of the attachment's stored file
+     * @return The lowercase hex digest, or null if unknown
+     */
+    public String getMd5() {
+        return data != null ? data.md5 : null;
+    }
+    
+    /**
+     * Get the modification time of the attachment's stored file
+     * @return Milliseconds since the epoch, or -1 if unknown
+     */
+    public long getMtime() {
+        return data != null && data.mtime != null ? data.mtime : -1;
+    }
+    
+    /**
+     * Get the size of the attachment's stored file
+     * @return The size in bytes, or -1 if unknown
+     */
+    public long getFileSize() {
+        if (links == null || links.enclosure == null || links.enclosure.length == null) {
+            return -1;
+        }
+        return links.enclosure.length;
+    }
+    
+    /**
+     * Get the number of child items (attachments and notes) of a parent item
+     * @return The number of children, or -1 if the response didn't include it
+     */
+    public int getNumChildren() {
+        return meta != null && meta.numChildren != null ? meta.numChildren : -1;
+    }
+    
+    /**
+     * Get the key of the best attachment Zotero reports for this parent item
+     * @return The attachment key, or null if the item has no attachment link
+     */
+    public String getBestAttachmentKey() {
+        if (links == null || links.attachment == null || links.attachment.href == null) {
+            return null;
+        }
+        String href = links.attachment.href;
+        int slash = href.lastIndexOf('/');
+        return slash >= 0 && slash < href.length() - 1 ? href.substring(slash + 1) : null;
+    }
+    
     // For debugging
     @Override
     public String toString() {
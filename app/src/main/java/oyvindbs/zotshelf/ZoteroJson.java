@@ -0,0 +1,55 @@
+package oyvindbs.zotshelf;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * The app's one Gson instance, used by the Retrofit converter and for stored state.
+ * Zotero items and collections go through hand-written TypeAdapters that pick out
+ * the fields the app uses and skip the rest of each object, instead of going through
+ * reflection. They write the same fields back in the same shape, so what is written
+ * reads back unchanged.
+ */
+public final class ZoteroJson {
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ZoteroItem.class, new ZoteroItemAdapter().nullSafe())
+            .registerTypeAdapter(ZoteroCollection.class, new ZoteroCollectionAdapter().nullSafe())
+            .create();
+
+    private ZoteroJson() {
+    }
+
+    public static Gson getGson() {
+        return GSON;
+    }
+
+    private static class ZoteroItemAdapter extends TypeAdapter<ZoteroItem> {
+        @Override
+        public ZoteroItem read(JsonReader reader) throws IOException {
+            return ZoteroItem.fromJson(reader);
+        }
+
+        @Override
+        public void write(JsonWriter writer, ZoteroItem item) throws IOException {
+            item.toJson(writer);
+        }
+    }
+
+    private static class ZoteroCollectionAdapter extends TypeAdapter<ZoteroCollection> {
+        @Override
+        public ZoteroCollection read(JsonReader reader) throws IOException {
+            return ZoteroCollection.fromJson(reader);
+        }
+
+        @Override
+        public void write(JsonWriter writer, ZoteroCollection collection) throws IOException {
+            collection.toJson(writer);
+        }
+    }
+}
@@ -13,7 +13,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 
 - Enhanced main database for the application with migration support
   */
-  @Database(entities = {EpubCoverEntity.class}, version = 2, exportSchema = false)
+  @Database(entities = {EpubCoverEntity.class, SyncStateEntity.class, EbookFileEntity.class, CoverJobEntity.class}, version = 6, exportSchema = false)
   public abstract class AppDatabase extends RoomDatabase {
   
   private static final String DATABASE_NAME = "zotero_epub_covers_db";
@@ -21,6 +21,12 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
   
   public abstract EpubCoverDao epubCoverDao();
   
+  public abstract SyncStateDao syncStateDao();
+  
+  public abstract EbookFileDao ebookFileDao();
+  
+  public abstract CoverJobDao coverJobDao();
+  
   // Migration from version 1 to 2 (adding new fields for offline support)
   private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
   @Override
@@ -35,13 +41,55 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
   }
   };
   
+  // Migration from version 2 to 3 (library versions for delta sync)
+  private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+  @Override
+  public void migrate(@NonNull SupportSQLiteDatabase database) {
+  database.execSQL("ALTER TABLE epub_covers ADD COLUMN parentItemKey TEXT");
+  database.execSQL("CREATE TABLE IF NOT EXISTS sync_state (scope TEXT NOT NULL, " +
+  "libraryVersion INTEGER NOT NULL, lastSynced INTEGER NOT NULL, PRIMARY KEY(scope))");
+  }
+  };
+  
+  // Migration from version 3 to 4 (file versions for cache validation)
+  private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+  @Override
+  public void migrate(@NonNull SupportSQLiteDatabase database) {
+  database.execSQL("CREATE TABLE IF NOT EXISTS ebook_files (itemKey TEXT NOT NULL, filePath TEXT, " +
+  "md5 TEXT, mtime INTEGER NOT NULL, size INTEGER NOT NULL, cachedAt INTEGER NOT NULL, PRIMARY KEY(itemKey))");
+  }
+  };
+  
+  // Migration from version 4 to 5 (persistent cover fetch queue)
+  private static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+  @Override
+  public void migrate(@NonNull SupportSQLiteDatabase database) {
+  database.execSQL("CREATE TABLE IF NOT EXISTS cover_jobs (itemKey TEXT NOT NULL, title TEXT, " +
+  "mimeType TEXT, fileName TEXT, downloadUrl TEXT, md5 TEXT, mtime INTEGER NOT NULL, " +
+  "fileSize INTEGER NOT NULL, priority INTEGER NOT NULL, state TEXT, retryCount INTEGER NOT NULL, " +
+  "lastError TEXT, enqueuedAt INTEGER NOT NULL, updatedAt INTEGER NOT NULL, PRIMARY KEY(itemKey))");
+  }
+  };
+  
+  // Migration from version 5 to 6 (attachment file versions on cached entries)
+  private static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+  @Override
+  public void migrate(@NonNull SupportSQLiteDatabase database) {
+  database.execSQL("ALTER TABLE epub_covers ADD COLUMN md5 TEXT");
+  database.execSQL("ALTER TABLE epub_covers ADD COLUMN mtime INTEGER NOT NULL DEFAULT -1");
+  database.execSQL("ALTER TABLE epub_covers ADD COLUMN fileSize INTEGER NOT NULL DEFAULT -1");
+  // Sync every scope in full once, so the existing entries get their file versions
+  database.execSQL("DELETE FROM sync_state");
+  }
+  };
+  
   public static synchronized AppDatabase getInstance(Context context) {
   if (instance == null) {
   instance = Room.databaseBuilder(
   context.getApplicationContext(),
   AppDatabase.class,
   DATABASE_NAME)
-  .addMigrations(MIGRATION_1_2)
+  .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
   .fallbackToDestructiveMigration() // Only as last resort
   .build();
   }
@@ -0,0 +1,39 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Data Access Object for the queue of cover fetches
+ */
+@Dao
+public interface CoverJobDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(CoverJobEntity job);
+
+    @Query("SELECT * FROM cover_jobs WHERE itemKey = :itemKey")
+    CoverJobEntity getByKey(String itemKey);
+
+    @Query("SELECT * FROM cover_jobs WHERE state = 'pending' ORDER BY priority, enqueuedAt LIMIT :limit")
+    List<CoverJobEntity> getPending(int limit);
+
+    @Query("UPDATE cover_jobs SET state = :state, updatedAt = :updatedAt WHERE itemKey = :itemKey")
+    void updateState(String itemKey, String state, long updatedAt);
+
+    // Jobs that were running when the process died count as an attempt
+    @Query("UPDATE cover_jobs SET state = 'pending', retryCount = retryCount + 1 " +
+           "WHERE state IN ('downloading', 'extracting')")
+    int requeueInterrupted();
+
+    @Query("UPDATE cover_jobs SET state = 'failed', lastError = :error " +
+           "WHERE state = 'pending' AND retryCount >= :maxAttempts")
+    int failExhausted(int maxAttempts, String error);
+
+    @Query("DELETE FROM cover_jobs WHERE state = 'done'")
+    void deleteDone();
+}
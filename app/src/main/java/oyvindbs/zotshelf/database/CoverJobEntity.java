@@ -0,0 +1,169 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * A queued cover fetch for one attachment. Jobs are kept in the database so a long
+ * first sync picks up where it left off after the process is killed.
+ */
+@Entity(tableName = "cover_jobs")
+public class CoverJobEntity {
+
+    public static final String STATE_PENDING = "pending";
+    public static final String STATE_DOWNLOADING = "downloading";
+    public static final String STATE_EXTRACTING = "extracting";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_FAILED = "failed";
+
+    @PrimaryKey
+    @NonNull
+    private String itemKey; // Zotero key of the attachment
+
+    // What is needed to fetch the attachment again after a restart
+    private String title;
+    private String mimeType;
+    private String fileName;
+    private String downloadUrl;
+    private String md5;
+    private long mtime;
+    private long fileSize;
+
+    private int priority; // Ordinal of the scheduler lane; lower runs first
+    private String state;
+    private int retryCount; // Failed or interrupted attempts so far
+    private String lastError;
+    private long enqueuedAt; // Jobs of the same priority run in this order
+    private long updatedAt;
+
+    public CoverJobEntity(@NonNull String itemKey, String title, String mimeType, String fileName,
+                          String downloadUrl, String md5, long mtime, long fileSize, int priority) {
+        this.itemKey = itemKey;
+        this.title = title;
+        this.mimeType = mimeType;
+        this.fileName = fileName;
+        this.downloadUrl = downloadUrl;
+        this.md5 = md5;
+        this.mtime = mtime;
+        this.fileSize = fileSize;
+        this.priority = priority;
+        this.state = STATE_PENDING;
+        this.retryCount = 0;
+        this.enqueuedAt = System.currentTimeMillis();
+        this.updatedAt = this.enqueuedAt;
+    }
+
+    @NonNull
+    public String getItemKey() {
+        return itemKey;
+    }
+
+    public void setItemKey(@NonNull String itemKey) {
+        this.itemKey = itemKey;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getDownloadUrl() {
+        return downloadUrl;
+    }
+
+    public void setDownloadUrl(String downloadUrl) {
+        this.downloadUrl = downloadUrl;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public void setMd5(String md5) {
+        this.md5 = md5;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public void setMtime(long mtime) {
+        this.mtime = mtime;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public void setEnqueuedAt(long enqueuedAt) {
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,25 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+/**
+ * Data Access Object for the versions of cached attachment files
+ */
+@Dao
+public interface EbookFileDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(EbookFileEntity file);
+
+    @Query("SELECT * FROM ebook_files WHERE itemKey = :itemKey")
+    EbookFileEntity getByKey(String itemKey);
+
+    @Query("UPDATE ebook_files SET filePath = NULL WHERE filePath = :filePath")
+    void clearFilePath(String filePath);
+
+    @Query("DELETE FROM ebook_files WHERE itemKey = :itemKey")
+    void deleteByKey(String itemKey);
+}
@@ -0,0 +1,97 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * The version of an attachment's file that the local cache was made from, so a
+ * replaced or corrupted file is noticed instead of trusted because it exists
+ */
+@Entity(tableName = "ebook_files")
+public class EbookFileEntity {
+
+    @PrimaryKey
+    @NonNull
+    private String itemKey; // Zotero key of the attachment
+
+    private String filePath; // Downloaded ebook, or null if only its cover was fetched
+    private String md5; // MD5 of the file, lowercase hex
+    private long mtime; // Modification time Zotero reported for the file, -1 if unknown
+    private long size; // Size of the file in bytes, -1 if unknown
+    private long cachedAt; // Timestamp of the download or cover fetch
+
+    public EbookFileEntity(@NonNull String itemKey, String filePath, String md5, long mtime, long size, long cachedAt) {
+        this.itemKey = itemKey;
+        this.filePath = filePath;
+        this.md5 = md5;
+        this.mtime = mtime;
+        this.size = size;
+        this.cachedAt = cachedAt;
+    }
+
+    /**
+     * Check whether the cache still reflects an attachment's file as the API describes it.
+     * The MD5 decides when both sides know it, so a file that was only touched is kept;
+     * otherwise the modification time does. With neither known there is nothing to go by,
+     * and the cache is trusted.
+     */
+    public boolean matches(String currentMd5, long currentMtime) {
+        if (currentMd5 != null && md5 != null) {
+            return currentMd5.equalsIgnoreCase(md5);
+        }
+        if (currentMtime >= 0 && mtime >= 0) {
+            return currentMtime == mtime;
+        }
+        return true;
+    }
+
+    @NonNull
+    public String getItemKey() {
+        return itemKey;
+    }
+
+    public void setItemKey(@NonNull String itemKey) {
+        this.itemKey = itemKey;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    public void setMd5(String md5) {
+        this.md5 = md5;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public void setMtime(long mtime) {
+        this.mtime = mtime;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getCachedAt() {
+        return cachedAt;
+    }
+
+    public void setCachedAt(long cachedAt) {
+        this.cachedAt = cachedAt;
+    }
+}
@@ -31,4 +31,43 @@ public interface EpubCoverDao {
            "(:showPdfs = 1 AND mimeType = 'application/pdf')) AND " +
            "((:booksOnly = 1 AND isBook = 1) OR (:booksOnly = 0))")
     List<EpubCoverEntity> getCoversByCollection(String collectionKey, boolean booksOnly, boolean showEpubs, boolean showPdfs);
+
+    @Query("SELECT * FROM epub_covers WHERE coverPath IS NULL AND " +
+           "((:booksOnly = 1 AND isBook = 1) OR (:booksOnly = 0)) AND " +
+           "((:showEpubs = 1 AND mimeType = 'application/epub+zip') OR " +
+           "(:showPdfs = 1 AND mimeType = 'application/pdf'))")
+    List<EpubCoverEntity> getMissingCoversByPreferences(boolean booksOnly, boolean showEpubs, boolean showPdfs);
+
+    @Query("SELECT * FROM epub_covers WHERE coverPath IS NULL AND " +
+           "(:collectionKey = '' OR collectionKeys = '' OR collectionKeys LIKE '%' || :collectionKey || '%') AND " +
+           "((:showEpubs = 1 AND mimeType = 'application/epub+zip') OR " +
+           "(:showPdfs = 1 AND mimeType = 'application/pdf')) AND " +
+           "((:booksOnly = 1 AND isBook = 1) OR (:booksOnly = 0))")
+    List<EpubCoverEntity> getMissingCoversByCollection(String collectionKey, boolean booksOnly, boolean showEpubs, boolean showPdfs);
+
+    @Query("SELECT * FROM epub_covers WHERE id = :id")
+    EpubCoverEntity getById(String id);
+
+    @Query("SELECT id FROM epub_covers WHERE coverPath = :coverPath")
+    List<String> getIdsByCoverPath(String coverPath);
+
+    @Query("SELECT id FROM epub_covers")
+    List<String> getAllIds();
+
+    @Query("SELECT * FROM epub_covers WHERE collectionKeys LIKE '%' || :collectionKey || '%'")
+    List<EpubCoverEntity> getByCollectionKey(String collectionKey);
+
+    @Query("UPDATE epub_covers SET coverPath = :coverPath, lastUpdated = :lastUpdated WHERE id = :id")
+    void updateCoverPath(String id, String coverPath, long lastUpdated);
+
+    @Query("UPDATE epub_covers SET collectionKeys = :collectionKeys WHERE id = :id")
+    void updateCollectionKeys(String id, String collectionKeys);
+
+    @Query("UPDATE epub_covers SET title = :title, authors = :authors, parentItemType = :parentItemType, " +
+           "isBook = :isBook, lastUpdated = :lastUpdated WHERE parentItemKey = :parentItemKey")
+    void updateParentMetadata(String parentItemKey, String title, String authors, String parentItemType,
+                              boolean isBook, long lastUpdated);
+
+    @Query("DELETE FROM epub_covers WHERE id = :id")
+    void deleteById(String id);
 }
@@ -1,6 +1,7 @@
 package oyvindbs.zotshelf.database;
 
 import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.PrimaryKey;
 
@@ -28,6 +29,14 @@ import androidx.room.PrimaryKey;
   private String parentItemType; // Type of parent item (book, article, etc.)
   private boolean isBook; // Cached result of isBook() check
   private String collectionKeys; // Pipe-separated collection keys this item belongs to
+  private String parentItemKey; // Key of the parent item, for applying parent metadata changes
+  
+  // Version of the attachment file as Zotero reports it, for checking downloads
+  private String md5; // MD5 of the file, null if unknown
+  @ColumnInfo(defaultValue = "-1")
+  private long mtime = -1; // Modification time of the file in milliseconds, -1 if unknown
+  @ColumnInfo(defaultValue = "-1")
+  private long fileSize = -1; // Size of the file in bytes, -1 if unknown
   
   public EpubCoverEntity(@NonNull String id, String title, String authors,
   String coverPath, String zoteroUsername) {
@@ -137,4 +146,36 @@ import androidx.room.PrimaryKey;
   public void setCollectionKeys(String collectionKeys) {
   this.collectionKeys = collectionKeys;
   }
+  
+  public String getParentItemKey() {
+  return parentItemKey;
+  }
+  
+  public void setParentItemKey(String parentItemKey) {
+  this.parentItemKey = parentItemKey;
+  }
+  
+  public String getMd5() {
+  return md5;
+  }
+  
+  public void setMd5(String md5) {
+  this.md5 = md5;
+  }
+  
+  public long getMtime() {
+  return mtime;
+  }
+  
+  public void setMtime(long mtime) {
+  this.mtime = mtime;
+  }
+  
+  public long getFileSize() {
+  return fileSize;
+  }
+  
+  public void setFileSize(long fileSize) {
+  this.fileSize = fileSize;
+  }
   }
\ No newline at end of file
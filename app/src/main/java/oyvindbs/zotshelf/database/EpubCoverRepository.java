@@ -5,13 +5,17 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import oyvindbs.zotshelf.CoverThumbnails;
 import oyvindbs.zotshelf.EpubCoverItem;
+import oyvindbs.zotshelf.LibraryDelta;
 import oyvindbs.zotshelf.UserPreferences;
 import oyvindbs.zotshelf.ZoteroItem;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -72,8 +76,12 @@ public class EpubCoverRepository {
         
         entity.setFileName(item.getFilename());
         entity.setMimeType(item.getMimeType());
+        entity.setParentItemKey(item.getParentItemKey());
         entity.setParentItemType(item.getParentItemType());
         entity.setBook(item.isBook());
+        entity.setMd5(item.getMd5());
+        entity.setMtime(item.getMtime());
+        entity.setFileSize(item.getFileSize());
         
         String currentCollection = userPreferences.getSelectedCollectionKey();
         if (currentCollection != null && !currentCollection.isEmpty()) {
@@ -89,6 +97,233 @@ public class EpubCoverRepository {
         return entity;
     }
 
+    /**
+     * Rebuild the attachment of a cached entry, with the file version it was synced at,
+     * so it can be downloaded and checked again
+     */
+    public static ZoteroItem toZoteroItem(EpubCoverEntity entity) {
+        return ZoteroItem.fromCachedEntry(entity.getId(), entity.getTitle(), entity.getMimeType(),
+                entity.getFileName(), entity.getDownloadUrl(), entity.getMd5(), entity.getMtime(),
+                entity.getFileSize());
+    }
+
+    public void updateCoverPath(String itemKey, String coverPath) {
+        executor.execute(() -> updateCoverPathSync(itemKey, coverPath));
+    }
+
+    public void updateCoverPathSync(String itemKey, String coverPath) {
+        try {
+            database.epubCoverDao().updateCoverPath(itemKey, coverPath, System.currentTimeMillis());
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating cover for item: " + itemKey, e);
+        }
+    }
+
+    /**
+     * @return The cached entry for an attachment, or null if there is none
+     */
+    public EpubCoverEntity getEntrySync(String itemKey) {
+        return database.epubCoverDao().getById(itemKey);
+    }
+
+    private static void deleteFile(String path) {
+        if (path != null && new File(path).delete()) {
+            Log.d(TAG, "Deleted " + path);
+        }
+    }
+
+    /**
+     * Sync scope for a library or collection, used to store its library version
+     */
+    public static String getSyncScope(String userId, String collectionKey) {
+        return userId + "/" + (collectionKey != null ? collectionKey : "");
+    }
+
+    public long getLibraryVersionSync(String scope) {
+        SyncStateEntity state = database.syncStateDao().getByScope(scope);
+        return state != null ? state.getLibraryVersion() : 0;
+    }
+
+    /**
+     * Upsert a batch of changed attachments in one transaction, keeping extracted
+     * covers and adding the collection to each entry's collection keys
+     * @return The stored entries
+     */
+    public List<EpubCoverEntity> saveChangedAttachmentsSync(String collectionKey, List<ZoteroItem> attachments) {
+        List<EpubCoverEntity> saved = new ArrayList<>();
+        database.runInTransaction(() -> {
+            EpubCoverDao dao = database.epubCoverDao();
+            EbookFileDao fileDao = database.ebookFileDao();
+
+            for (ZoteroItem item : attachments) {
+                EpubCoverEntity existing = dao.getById(item.getKey());
+                String coverPath = existing != null ? existing.getCoverPath() : null;
+
+                // Keep the extracted cover when only the metadata changed, and drop
+                // it with the cached file when the file itself was replaced
+                EbookFileEntity cachedFile = fileDao.getByKey(item.getKey());
+                if (cachedFile != null && !cachedFile.matches(item.getMd5(), item.getMtime())) {
+                    Log.d(TAG, "File of " + item.getKey() + " changed in Zotero, dropping its cache");
+                    deleteFile(cachedFile.getFilePath());
+                    if (coverPath != null) {
+                        CoverThumbnails.delete(new File(coverPath));
+                    }
+                    fileDao.deleteByKey(item.getKey());
+                    coverPath = null;
+                }
+
+                EpubCoverEntity entity = createEntityFromZoteroItem(item, coverPath);
+                entity.setCollectionKeys(addCollectionKey(
+                        existing != null ? existing.getCollectionKeys() : "", collectionKey));
+                dao.insert(entity);
+                saved.add(entity);
+            }
+        });
+        return saved;
+    }
+
+    /**
+     * Apply a batch of changed parent metadata to the entries of their attachments
+     */
+    public void saveChangedParentsSync(List<ZoteroItem> parents) {
+        database.runInTransaction(() -> {
+            EpubCoverDao dao = database.epubCoverDao();
+            long now = System.currentTimeMillis();
+
+            for (ZoteroItem parent : parents) {
+                dao.updateParentMetadata(parent.getKey(), parent.getTitle(), parent.getAuthors(),
+                        parent.getItemType(), ZoteroItem.isBookType(parent.getItemType()), now);
+            }
+        });
+    }
+
+    /**
+     * Find the attachments in scope that the cache doesn't list under it. Entries
+     * already cached for another scope just get the collection added; the keys
+     * returned have no entry at all and need to be fetched.
+     */
+    public List<String> claimKeysInScopeSync(String collectionKey, Set<String> currentKeys) {
+        List<String> uncachedKeys = new ArrayList<>();
+        database.runInTransaction(() -> {
+            EpubCoverDao dao = database.epubCoverDao();
+            boolean wholeLibrary = collectionKey == null || collectionKey.isEmpty();
+
+            Set<String> storedKeys = new HashSet<>();
+            if (wholeLibrary) {
+                storedKeys.addAll(dao.getAllIds());
+            } else {
+                for (EpubCoverEntity entity : dao.getByCollectionKey(collectionKey)) {
+                    storedKeys.add(entity.getId());
+                }
+            }
+
+            for (String key : currentKeys) {
+                if (storedKeys.contains(key)) {
+                    continue;
+                }
+                EpubCoverEntity existing = wholeLibrary ? null : dao.getById(key);
+                if (existing != null) {
+                    dao.updateCollectionKeys(key, addCollectionKey(existing.getCollectionKeys(), collectionKey));
+                } else {
+                    uncachedKeys.add(key);
+                }
+            }
+        });
+        return uncachedKeys;
+    }
+
+    /**
+     * Finish a sync once every changed item has been stored: drop entries that left
+     * the library or collection and record the new library version for the scope.
+     * The version is only recorded here, so an interrupted sync starts over from the
+     * previous one.
+     */
+    public void commitSyncStateSync(String scope, String collectionKey, LibraryDelta delta) {
+        database.runInTransaction(() -> {
+            removeStaleEntries(database.epubCoverDao(), collectionKey, delta.getCurrentKeys());
+            database.syncStateDao().insert(new SyncStateEntity(scope, delta.getLibraryVersion(),
+                    System.currentTimeMillis()));
+        });
+
+        Log.d(TAG, "Applied delta for " + scope + " at library version " + delta.getLibraryVersion());
+    }
+
+    /**
+     * Remove entries that are no longer in scope. Outside a collection that means the
+     * attachment was deleted; inside one it only leaves that collection.
+     */
+    private void removeStaleEntries(EpubCoverDao dao, String collectionKey, Set<String> currentKeys) {
+        if (collectionKey == null || collectionKey.isEmpty()) {
+            for (String id : dao.getAllIds()) {
+                if (!currentKeys.contains(id)) {
+                    dao.deleteById(id);
+                }
+            }
+            return;
+        }
+
+        for (EpubCoverEntity entity : dao.getByCollectionKey(collectionKey)) {
+            if (!currentKeys.contains(entity.getId())) {
+                dao.updateCollectionKeys(entity.getId(),
+                        removeCollectionKey(entity.getCollectionKeys(), collectionKey));
+            }
+        }
+    }
+
+    private static String addCollectionKey(String collectionKeys, String collectionKey) {
+        if (collectionKeys == null) {
+            collectionKeys = "";
+        }
+        if (collectionKey == null || collectionKey.isEmpty()) {
+            return collectionKeys;
+        }
+        for (String key : collectionKeys.split("\\|")) {
+            if (key.equals(collectionKey)) {
+                return collectionKeys;
+            }
+        }
+        return collectionKeys.isEmpty() ? collectionKey : collectionKeys + "|" + collectionKey;
+    }
+
+    private static String removeCollectionKey(String collectionKeys, String collectionKey) {
+        if (collectionKeys == null || collectionKeys.isEmpty()) {
+            return "";
+        }
+        StringBuilder remaining = new StringBuilder();
+        for (String key : collectionKeys.split("\\|")) {
+            if (!key.isEmpty() && !key.equals(collectionKey)) {
+                if (remaining.length() > 0) {
+                    remaining.append("|");
+                }
+                remaining.append(key);
+            }
+        }
+        return remaining.toString();
+    }
+
+    /**
+     * Get cached entries for a collection that still need a cover, filtered by user preferences
+     */
+    public List<EpubCoverEntity> getEntriesMissingCoversSync(String collectionKey) {
+        boolean booksOnly = userPreferences.getBooksOnly();
+        boolean showEpubs = userPreferences.getShowEpubs();
+        boolean showPdfs = userPreferences.getShowPdfs();
+
+        if (collectionKey != null && !collectionKey.isEmpty()) {
+            return database.epubCoverDao().getMissingCoversByCollection(collectionKey, booksOnly, showEpubs, showPdfs);
+        }
+        return database.epubCoverDao().getMissingCoversByPreferences(booksOnly, showEpubs, showPdfs);
+    }
+
+    public List<EpubCoverItem> getFilteredCoversForCollectionSync(String collectionKey) {
+        try {
+            return convertEntitiesToCoverItems(getFilteredEntitiesForCollection(collectionKey));
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading filtered covers for collection", e);
+            return new ArrayList<>();
+        }
+    }
+
     public void getFilteredCoversForCollection(String collectionKey, CoverRepositoryCallback callback) {
         executor.execute(() -> {
             try {
@@ -118,7 +353,27 @@ public class EpubCoverRepository {
         return entities;
     }
 
-    private List<EpubCoverItem> convertEntitiesToCoverItems(List<EpubCoverEntity> entities) {
+    /**
+     * Keep only the entries shown by the user's file type and books-only preferences
+     */
+    public List<EpubCoverEntity> filterByPreferences(List<EpubCoverEntity> entities) {
+        boolean booksOnly = userPreferences.getBooksOnly();
+        boolean showEpubs = userPreferences.getShowEpubs();
+        boolean showPdfs = userPreferences.getShowPdfs();
+
+        List<EpubCoverEntity> filtered = new ArrayList<>();
+        for (EpubCoverEntity entity : entities) {
+            String mimeType = entity.getMimeType();
+            boolean isShownType = (showEpubs && "application/epub+zip".equals(mimeType))
+                    || (showPdfs && "application/pdf".equals(mimeType));
+            if (isShownType && (!booksOnly || entity.isBook())) {
+                filtered.add(entity);
+            }
+        }
+        return filtered;
+    }
+
+    public List<EpubCoverItem> convertEntitiesToCoverItems(List<EpubCoverEntity> entities) {
         List<EpubCoverItem> coverItems = new ArrayList<>();
         for (EpubCoverEntity entity : entities) {
             String coverPath = entity.getCoverPath();
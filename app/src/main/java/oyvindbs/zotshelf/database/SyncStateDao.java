@@ -0,0 +1,19 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+/**
+ * Data Access Object for per-scope library sync versions
+ */
+@Dao
+public interface SyncStateDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(SyncStateEntity state);
+
+    @Query("SELECT * FROM sync_state WHERE scope = :scope")
+    SyncStateEntity getByScope(String scope);
+}
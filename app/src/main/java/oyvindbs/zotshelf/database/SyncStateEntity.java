@@ -0,0 +1,50 @@
+package oyvindbs.zotshelf.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Last synced Zotero library version for a library or collection
+ */
+@Entity(tableName = "sync_state")
+public class SyncStateEntity {
+
+    @PrimaryKey
+    @NonNull
+    private String scope; // userId + "/" + collection key (empty for the whole library)
+
+    private long libraryVersion; // Last-Modified-Version the cache is up to date with
+    private long lastSynced; // Timestamp of the last successful sync
+
+    public SyncStateEntity(@NonNull String scope, long libraryVersion, long lastSynced) {
+        this.scope = scope;
+        this.libraryVersion = libraryVersion;
+        this.lastSynced = lastSynced;
+    }
+
+    @NonNull
+    public String getScope() {
+        return scope;
+    }
+
+    public void setScope(@NonNull String scope) {
+        this.scope = scope;
+    }
+
+    public long getLibraryVersion() {
+        return libraryVersion;
+    }
+
+    public void setLibraryVersion(long libraryVersion) {
+        this.libraryVersion = libraryVersion;
+    }
+
+    public long getLastSynced() {
+        return lastSynced;
+    }
+
+    public void setLastSynced(long lastSynced) {
+        this.lastSynced = lastSynced;
+    }
+}
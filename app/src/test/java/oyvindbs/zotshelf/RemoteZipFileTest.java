@@ -0,0 +1,242 @@
+package oyvindbs.zotshelf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class RemoteZipFileTest {
+
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    /**
+     * Serves ranges of an archive held in memory, the way the server would
+     */
+    private static class MemorySource extends HttpRangeSource {
+        private final byte[] file;
+        int requests = 0;
+
+        MemorySource(byte[] file) {
+            super(null, "https://example.org/file.epub", null, new CancelHandle());
+            this.file = file;
+        }
+
+        @Override
+        public byte[] readTail(int length) {
+            requests++;
+            int count = Math.min(length, file.length);
+            return Arrays.copyOfRange(file, file.length - count, file.length);
+        }
+
+        @Override
+        public byte[] read(long offset, int length) {
+            requests++;
+            int start = (int) Math.min(offset, file.length);
+            int end = (int) Math.min((long) start + length, file.length);
+            return Arrays.copyOfRange(file, start, end);
+        }
+
+        @Override
+        public long getSize() {
+            return file.length;
+        }
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        byte[] text = "<container/>".getBytes("UTF-8");
+        byte[] image = randomBytes(5000);
+        byte[] zip = buildZip(null, new String[] { "META-INF/container.xml", "OEBPS/cover.jpg" },
+                new byte[][] { text, image }, new boolean[] { false, true });
+
+        RemoteZipFile remote = RemoteZipFile.open(new MemorySource(zip));
+        RemoteZipFile.Entry deflated = remote.getEntry("META-INF/container.xml");
+        RemoteZipFile.Entry stored = remote.getEntry("OEBPS/cover.jpg");
+        assertNotNull(deflated);
+        assertNotNull(stored);
+        assertNull(remote.getEntry("OEBPS/missing.jpg"));
+        assertArrayEquals(text, remote.readEntry(deflated));
+        assertArrayEquals(image, remote.readEntry(stored));
+        assertEquals(image.length, stored.getSize());
+    }
+
+    @Test
+    public void findsDirectoryBehindLongComment() throws IOException {
+        // Longer than the first tail probe, so the record is only found by the second
+        char[] comment = new char[40000];
+        Arrays.fill(comment, 'c');
+        byte[] text = "package".getBytes("UTF-8");
+        byte[] zip = buildZip(new String(comment), new String[] { "content.opf" },
+                new byte[][] { text }, new boolean[] { false });
+
+        RemoteZipFile remote = RemoteZipFile.open(new MemorySource(zip));
+        assertArrayEquals(text, remote.readEntry(remote.getEntry("content.opf")));
+    }
+
+    @Test
+    public void fetchesDirectoryOutsideTheTail() throws IOException {
+        // A maximal comment and a directory too large to fit next to it in the tail
+        char[] comment = new char[0xffff];
+        Arrays.fill(comment, 'c');
+        int count = 40;
+        String[] names = new String[count];
+        byte[][] contents = new byte[count][];
+        boolean[] stored = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "OEBPS/chapters/a-rather-long-chapter-file-name-" + i + ".xhtml";
+            contents[i] = ("chapter " + i).getBytes("UTF-8");
+            stored[i] = i % 2 == 0;
+        }
+        byte[] zip = buildZip(new String(comment), names, contents, stored);
+
+        MemorySource source = new MemorySource(zip);
+        RemoteZipFile remote = RemoteZipFile.open(source);
+        assertEquals(3, source.requests);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(contents[i], remote.readEntry(remote.getEntry(names[i])));
+        }
+    }
+
+    @Test
+    public void rejectsArchiveWithoutEndRecord() throws IOException {
+        assertOpenFails(randomBytes(1000));
+    }
+
+    @Test
+    public void rejectsTruncatedDirectory() throws IOException {
+        byte[] zip = sampleZip();
+        int eocd = zip.length - EOCD_SIZE;
+        // Claim one more entry than the directory holds
+        writeShort(zip, eocd + 10, readShort(zip, eocd + 10) + 1);
+        assertOpenFails(zip);
+    }
+
+    @Test
+    public void rejectsNameRunningPastDirectory() throws IOException {
+        byte[] zip = sampleZip();
+        int directory = (int) readInt(zip, zip.length - EOCD_SIZE + 16);
+        writeShort(zip, directory + 28, 0xfff0);
+        assertOpenFails(zip);
+    }
+
+    @Test
+    public void rejectsOversizedDirectory() throws IOException {
+        byte[] zip = sampleZip();
+        writeInt(zip, zip.length - EOCD_SIZE + 12, 0x7fffffffL);
+        assertOpenFails(zip);
+    }
+
+    @Test
+    public void rejectsOversizedEntry() throws IOException {
+        byte[] zip = sampleZip();
+        int directory = (int) readInt(zip, zip.length - EOCD_SIZE + 16);
+        // Uncompressed size of the first entry
+        writeInt(zip, directory + 24, 0xfffffff0L);
+
+        RemoteZipFile remote = RemoteZipFile.open(new MemorySource(zip));
+        try {
+            remote.readEntry(remote.getEntry("mimetype"));
+            fail("Expected a ZipException");
+        } catch (ZipException expected) {
+            // The cap keeps a broken size from becoming an allocation
+        }
+    }
+
+    @Test
+    public void rejectsEntryCutShortByEndOfFile() throws IOException {
+        byte[] zip = sampleZip();
+        int directory = (int) readInt(zip, zip.length - EOCD_SIZE + 16);
+        int nameLength = readShort(zip, directory + 28);
+        int extraLength = readShort(zip, directory + 30);
+        int commentLength = readShort(zip, directory + 32);
+        // Point the second entry's data far beyond the local header range
+        int second = directory + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        writeInt(zip, second + 20, RemoteZipFile.MAX_RANGE_SIZE);
+        writeInt(zip, second + 24, RemoteZipFile.MAX_RANGE_SIZE);
+
+        RemoteZipFile remote = RemoteZipFile.open(new MemorySource(zip));
+        try {
+            remote.readEntry(remote.getEntry("OEBPS/cover.jpg"));
+            fail("Expected a ZipException");
+        } catch (ZipException expected) {
+            // The file ends before the entry does
+        }
+    }
+
+    private static void assertOpenFails(byte[] zip) throws IOException {
+        try {
+            RemoteZipFile.open(new MemorySource(zip));
+            fail("Expected a ZipException");
+        } catch (ZipException expected) {
+            // Callers fall back to a full download
+        }
+    }
+
+    private static byte[] sampleZip() throws IOException {
+        return buildZip(null, new String[] { "mimetype", "OEBPS/cover.jpg" },
+                new byte[][] { "application/epub+zip".getBytes("UTF-8"), randomBytes(2000) },
+                new boolean[] { true, true });
+    }
+
+    private static byte[] buildZip(String comment, String[] names, byte[][] contents, boolean[] stored)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            if (comment != null) {
+                zip.setComment(comment);
+            }
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry entry = new ZipEntry(names[i]);
+                if (stored[i]) {
+                    CRC32 crc = new CRC32();
+                    crc.update(contents[i]);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(contents[i].length);
+                    entry.setCompressedSize(contents[i].length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(contents[i]);
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] randomBytes(int count) {
+        byte[] bytes = new byte[count];
+        new Random(count).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static long readInt(byte[] bytes, int offset) {
+        return (readShort(bytes, offset) | (long) readShort(bytes, offset + 2) << 16) & 0xffffffffL;
+    }
+
+    private static void writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, long value) {
+        writeShort(bytes, offset, (int) (value & 0xffff));
+        writeShort(bytes, offset + 2, (int) ((value >> 16) & 0xffff));
+    }
+}